@@ -81,6 +81,32 @@ public class ArcStandard extends ParsingSystem {
       return nBuffer > 0;
   }
 
+  /**
+   * Same decisions as {@link #canApply}, but the stack and buffer are
+   * inspected once for all transitions. Relies on the transition order
+   * set up in {@link #makeTransitions()}.
+   */
+  @Override
+  public void legalTransitions(Configuration c, boolean[] legal) {
+    int nStack = c.getStackSize();
+    int nBuffer = c.getBufferSize();
+    int nLabels = labels.size();
+
+    int leftHead = c.getStack(0);
+    boolean left = nStack > 2 && leftHead >= 0;
+
+    int rightHead = c.getStack(1);
+    boolean right = rightHead >= 0
+        && (singleRoot ? (nStack > 2) || (nStack == 2 && nBuffer == 0) : nStack >= 2);
+
+    for (int k = 0; k < nLabels; ++k) {
+      boolean isRoot = labels.get(k).equals(rootLabel);
+      legal[k] = left && (leftHead != 0 || isRoot);
+      legal[nLabels + k] = right && (rightHead != 0 || isRoot);
+    }
+    legal[2 * nLabels] = nBuffer > 0;
+  }
+
   @Override
   public void apply(Configuration c, String t) {
     int w1 = c.getStack(1);
@@ -94,6 +120,32 @@ public class ArcStandard extends ParsingSystem {
     } else c.shift();
   }
 
+  /**
+   * Same as {@link #apply(Configuration, String)}, but decodes the
+   * transition from its index (see {@link #makeTransitions()}) and
+   * moves the boxed word indices already on the stack and buffer, so
+   * nothing is allocated.
+   */
+  @Override
+  public void apply(Configuration c, int t) {
+    int nLabels = labels.size();
+    int nStack = c.getStackSize();
+    if (t < 2 * nLabels) {
+      Integer w1 = c.stack.get(nStack - 2);
+      Integer w2 = c.stack.get(nStack - 1);
+      String label = labels.get(t % nLabels);
+      if (t < nLabels) {
+        c.tree.head.set(w1, w2);
+        c.tree.label.set(w1, label);
+        c.removeSecondTopStack();
+      } else {
+        c.tree.head.set(w2, w1);
+        c.tree.label.set(w2, label);
+        c.removeTopStack();
+      }
+    } else c.shift();
+  }
+
   // O(n) implementation
   @Override
   public String getOracle(Configuration c, DependencyTree dTree) {
@@ -0,0 +1,151 @@
+package org.statnlp.allan.depner;
+
+/**
+ * Cache-blocked dense matrix products, built on the vector primitives
+ * of {@link Kernels}.
+ *
+ * Matrices are stored row-major in flat arrays. The left operand and
+ * the result are compact (their rows follow each other), while the
+ * right operand may be a column panel of a wider matrix, given by an
+ * offset and a row stride. Each product works through its operands in
+ * blocks of rows small enough to stay in cache while they are reused,
+ * and skips zero entries of the left operand, such as those of units
+ * dropped out or labels that do not apply.
+ *
+ * @see Config#gemmBackprop
+ */
+final class BlockedGemm {
+
+  /** Rows of an operand that are kept in cache together */
+  private static final int BLOCK = 32;
+
+  private BlockedGemm() {} // static methods
+
+  /**
+   * {@code c += a * b^T}, where {@code a} is {@code m x k}, {@code b}
+   * is {@code n x k} and {@code c} is {@code m x n}.
+   */
+  static void multiplyTransposed(Kernels kernels, int m, int n, int k, double[] a, double[] b, int bOff, int ldb,
+                                 double[] c) {
+    for (int i0 = 0; i0 < m; i0 += BLOCK) {
+      int i1 = Math.min(i0 + BLOCK, m);
+      int j = 0;
+      for (; j + 4 <= n; j += 4) {
+        int i = i0;
+        for (; i + 2 <= i1; i += 2)
+          dotTile(k, a, i * k, b, bOff + j * ldb, ldb, c, i * n + j, n);
+        for (; i < i1; ++i) {
+          for (int jj = j; jj < j + 4; ++jj)
+            c[i * n + jj] += kernels.dot(a, i * k, b, bOff + jj * ldb, k);
+        }
+      }
+      for (; j < n; ++j) {
+        for (int i = i0; i < i1; ++i)
+          c[i * n + j] += kernels.dot(a, i * k, b, bOff + j * ldb, k);
+      }
+    }
+  }
+
+  /**
+   * The 2 x 4 tile of {@code a * b^T} whose rows of {@code a} start at
+   * {@code aRow} and {@code aRow + k}, and whose rows of {@code b}
+   * start at {@code bRow} at intervals of {@code ldb}, added to
+   * {@code c} from {@code cPos}. The eight sums are independent, so
+   * they run in parallel where a single dot product would wait on each
+   * addition, and each element loaded serves several of them.
+   */
+  private static void dotTile(int k, double[] a, int aRow, double[] b, int bRow, int ldb, double[] c, int cPos,
+                              int ldc) {
+    int a0 = aRow, a1 = aRow + k;
+    int b0 = bRow, b1 = bRow + ldb, b2 = bRow + 2 * ldb, b3 = bRow + 3 * ldb;
+    double c00 = 0.0, c01 = 0.0, c02 = 0.0, c03 = 0.0;
+    double c10 = 0.0, c11 = 0.0, c12 = 0.0, c13 = 0.0;
+    for (int p = 0; p < k; ++p) {
+      double x0 = a[a0 + p], x1 = a[a1 + p];
+      double y0 = b[b0 + p], y1 = b[b1 + p], y2 = b[b2 + p], y3 = b[b3 + p];
+      c00 += x0 * y0;
+      c01 += x0 * y1;
+      c02 += x0 * y2;
+      c03 += x0 * y3;
+      c10 += x1 * y0;
+      c11 += x1 * y1;
+      c12 += x1 * y2;
+      c13 += x1 * y3;
+    }
+    c[cPos] += c00;
+    c[cPos + 1] += c01;
+    c[cPos + 2] += c02;
+    c[cPos + 3] += c03;
+    c[cPos + ldc] += c10;
+    c[cPos + ldc + 1] += c11;
+    c[cPos + ldc + 2] += c12;
+    c[cPos + ldc + 3] += c13;
+  }
+
+  /**
+   * {@code c += a * b}, where {@code a} is {@code m x k}, {@code b} is
+   * {@code k x n} and {@code c} is {@code m x n}.
+   */
+  static void multiply(Kernels kernels, int m, int n, int k, double[] a, double[] b, int bOff, int ldb, double[] c) {
+    int[] nonzero = new int[Math.min(k, BLOCK)];
+    for (int p0 = 0; p0 < k; p0 += BLOCK) {
+      int p1 = Math.min(p0 + BLOCK, k);
+      for (int i = 0; i < m; ++i) {
+        int numNonzero = 0;
+        for (int p = p0; p < p1; ++p) {
+          if (a[i * k + p] != 0.0)
+            nonzero[numNonzero++] = p;
+        }
+        int t = 0;
+        for (; t + 4 <= numNonzero; t += 4) {
+          int q0 = nonzero[t], q1 = nonzero[t + 1], q2 = nonzero[t + 2], q3 = nonzero[t + 3];
+          axpy4(a[i * k + q0], a[i * k + q1], a[i * k + q2], a[i * k + q3], b, bOff + q0 * ldb, bOff + q1 * ldb,
+              bOff + q2 * ldb, bOff + q3 * ldb, c, i * n, n);
+        }
+        for (; t < numNonzero; ++t)
+          kernels.axpy(a[i * k + nonzero[t]], b, bOff + nonzero[t] * ldb, c, i * n, n);
+      }
+    }
+  }
+
+  /**
+   * {@code c += a^T * b}, where {@code a} is {@code k x m}, {@code b}
+   * is {@code k x n} and {@code c} is {@code m x n}, given as the
+   * columns from {@code cOff} of the rows of a wider matrix.
+   */
+  static void multiplyTransposedLeft(Kernels kernels, int m, int n, int k, double[] a, double[] b, double[][] c,
+                                     int cOff) {
+    int[] nonzero = new int[Math.min(k, BLOCK)];
+    for (int p0 = 0; p0 < k; p0 += BLOCK) {
+      int p1 = Math.min(p0 + BLOCK, k);
+      for (int i = 0; i < m; ++i) {
+        int numNonzero = 0;
+        for (int p = p0; p < p1; ++p) {
+          if (a[p * m + i] != 0.0)
+            nonzero[numNonzero++] = p;
+        }
+        int t = 0;
+        for (; t + 4 <= numNonzero; t += 4) {
+          int q0 = nonzero[t], q1 = nonzero[t + 1], q2 = nonzero[t + 2], q3 = nonzero[t + 3];
+          axpy4(a[q0 * m + i], a[q1 * m + i], a[q2 * m + i], a[q3 * m + i], b, q0 * n, q1 * n, q2 * n, q3 * n,
+              c[i], cOff, n);
+        }
+        for (; t < numNonzero; ++t)
+          kernels.axpy(a[nonzero[t] * m + i], b, nonzero[t] * n, c[i], cOff, n);
+      }
+    }
+  }
+
+  /**
+   * {@code y[yOff + q] += a0 * x[x0 + q] + ... + a3 * x[x3 + q]} for
+   * {@code q < n}: the same sums, added in the same order, as four
+   * calls of {@link Kernels#axpy(double, double[], int, double[], int, int)},
+   * but loading and storing {@code y} once.
+   */
+  private static void axpy4(double a0, double a1, double a2, double a3, double[] x, int x0, int x1, int x2, int x3,
+                            double[] y, int yOff, int n) {
+    for (int q = 0; q < n; ++q)
+      y[yOff + q] = y[yOff + q] + a0 * x[x0 + q] + a1 * x[x1 + q] + a2 * x[x2 + q] + a3 * x[x3 + q];
+  }
+
+}
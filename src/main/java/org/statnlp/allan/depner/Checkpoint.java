@@ -0,0 +1,235 @@
+package org.statnlp.allan.depner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.stanford.nlp.io.RuntimeIOException;
+
+/**
+ * Binary snapshot of a training run, from which
+ * {@link DependencyParser} resumes exactly where the run left off: the
+ * dictionaries and pre-computed features the classifier was set up
+ * with, the classifier's {@link Classifier.TrainingState}, the next
+ * iteration, the best dev-set UAS so far and the state of the shared
+ * random generator.
+ *
+ * A checkpoint is written to a temporary file next to its destination,
+ * flushed to disk and then moved over the previous checkpoint, so a
+ * run killed while writing leaves the previous checkpoint intact.
+ *
+ * @see Config#checkpointPerIter
+ * @see Config#resume
+ */
+final class Checkpoint {
+
+  private static final int MAGIC = 0x4450434b; // "DPCK"
+  private static final int VERSION = 4;
+
+  /** Next training iteration to run */
+  final int iteration;
+  final double bestUAS;
+  /** See {@link Util#getRandomState()} */
+  final Util.RandomState randomState;
+  final List<String> knownWords, knownPos, knownLabels;
+  final List<Integer> preComputed;
+  final Classifier.TrainingState classifier;
+
+  Checkpoint(int iteration, double bestUAS, Util.RandomState randomState, List<String> knownWords, List<String> knownPos,
+             List<String> knownLabels, List<Integer> preComputed, Classifier.TrainingState classifier) {
+    this.iteration = iteration;
+    this.bestUAS = bestUAS;
+    this.randomState = randomState;
+    this.knownWords = knownWords;
+    this.knownPos = knownPos;
+    this.knownLabels = knownLabels;
+    this.preComputed = preComputed;
+    this.classifier = classifier;
+  }
+
+  /**
+   * Atomically replace the checkpoint at {@code path} with this one.
+   */
+  void write(String path) {
+    File file = new File(path).getAbsoluteFile();
+    File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    try {
+      try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+        write(out);
+        out.flush();
+        fileOut.getFD().sync();
+      }
+      Path from = tmp.toPath(), to = file.toPath();
+      try {
+        Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
+  private void write(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(iteration);
+    out.writeDouble(bestUAS);
+    out.writeLong(randomState.seed);
+    out.writeBoolean(randomState.haveNextNextGaussian);
+    out.writeDouble(randomState.nextNextGaussian);
+    writeStrings(out, knownWords);
+    writeStrings(out, knownPos);
+    writeStrings(out, knownLabels);
+    out.writeInt(preComputed.size());
+    for (int featureID : preComputed)
+      out.writeInt(featureID);
+
+    Classifier.TrainingState c = classifier;
+    writeMatrix(out, c.E);
+    writeMatrix(out, c.W1);
+    writeVector(out, c.b1);
+    writeMatrix(out, c.W2);
+    writeMatrix(out, c.eg2E);
+    writeMatrix(out, c.eg2W1);
+    writeVector(out, c.eg2b1);
+    writeMatrix(out, c.eg2W2);
+    writeInts(out, c.exampleOrder);
+    out.writeInt(c.epochPosition);
+    writeInts(out, c.regularizedUpTo);
+    out.writeInt(c.numSteps);
+    out.writeDouble(c.lastRegParameter);
+    out.writeDouble(c.lastAdaAlpha);
+    out.writeDouble(c.lastAdaEps);
+    out.writeDouble(c.squaresW);
+    out.writeDouble(c.squaresE);
+  }
+
+  /**
+   * @return The checkpoint at {@code path}, or {@code null} if there
+   *         is none
+   * @throws java.lang.IllegalArgumentException If the file is not a
+   *         checkpoint
+   */
+  static Checkpoint read(String path) {
+    File file = new File(path);
+    if (!file.exists())
+      return null;
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+      if (in.readInt() != MAGIC)
+        throw new IllegalArgumentException(path + " is not a training checkpoint");
+      int version = in.readInt();
+      if (version != VERSION)
+        throw new IllegalArgumentException("Unsupported checkpoint version " + version + " in " + path);
+
+      int iteration = in.readInt();
+      double bestUAS = in.readDouble();
+      Util.RandomState randomState = new Util.RandomState(in.readLong(), in.readBoolean(), in.readDouble());
+      List<String> knownWords = readStrings(in);
+      List<String> knownPos = readStrings(in);
+      List<String> knownLabels = readStrings(in);
+      int numPreComputed = in.readInt();
+      List<Integer> preComputed = new ArrayList<>(numPreComputed);
+      for (int i = 0; i < numPreComputed; ++i)
+        preComputed.add(in.readInt());
+
+      double[][] E = readMatrix(in);
+      double[][] W1 = readMatrix(in);
+      double[] b1 = readVector(in);
+      double[][] W2 = readMatrix(in);
+      double[][] eg2E = readMatrix(in);
+      double[][] eg2W1 = readMatrix(in);
+      double[] eg2b1 = readVector(in);
+      double[][] eg2W2 = readMatrix(in);
+      int[] exampleOrder = readInts(in);
+      int epochPosition = in.readInt();
+      int[] regularizedUpTo = readInts(in);
+      Classifier.TrainingState classifier = new Classifier.TrainingState(E, W1, b1, W2, eg2E, eg2W1, eg2b1, eg2W2,
+          exampleOrder, epochPosition, regularizedUpTo, in.readInt(), in.readDouble(), in.readDouble(), in.readDouble(),
+          in.readDouble(), in.readDouble());
+
+      return new Checkpoint(iteration, bestUAS, randomState, knownWords, knownPos, knownLabels, preComputed,
+          classifier);
+    } catch (EOFException e) {
+      throw new IllegalArgumentException("Truncated checkpoint " + path, e);
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
+  static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+    out.writeInt(strings.size());
+    for (String s : strings)
+      out.writeUTF(s);
+  }
+
+  static List<String> readStrings(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    List<String> strings = new ArrayList<>(size);
+    for (int i = 0; i < size; ++i)
+      strings.add(in.readUTF());
+    return strings;
+  }
+
+  private static void writeMatrix(DataOutputStream out, double[][] m) throws IOException {
+    out.writeInt(m.length);
+    out.writeInt(m.length == 0 ? 0 : m[0].length);
+    for (double[] row : m)
+      for (double x : row)
+        out.writeDouble(x);
+  }
+
+  private static double[][] readMatrix(DataInputStream in) throws IOException {
+    double[][] m = new double[in.readInt()][in.readInt()];
+    for (double[] row : m)
+      for (int j = 0; j < row.length; ++j)
+        row[j] = in.readDouble();
+    return m;
+  }
+
+  private static void writeVector(DataOutputStream out, double[] v) throws IOException {
+    out.writeInt(v.length);
+    for (double x : v)
+      out.writeDouble(x);
+  }
+
+  private static double[] readVector(DataInputStream in) throws IOException {
+    double[] v = new double[in.readInt()];
+    for (int i = 0; i < v.length; ++i)
+      v[i] = in.readDouble();
+    return v;
+  }
+
+  /** Writes {@code null} as length -1 */
+  static void writeInts(DataOutputStream out, int[] v) throws IOException {
+    out.writeInt(v == null ? -1 : v.length);
+    if (v != null)
+      for (int x : v)
+        out.writeInt(x);
+  }
+
+  static int[] readInts(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0)
+      return null;
+    int[] v = new int[length];
+    for (int i = 0; i < length; ++i)
+      v[i] = in.readInt();
+    return v;
+  }
+
+}
@@ -1,18 +1,16 @@
 package org.statnlp.allan.depner;
 import edu.stanford.nlp.util.logging.Redwood;
 
-import edu.stanford.nlp.util.CollectionUtils;
-import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.concurrent.MulticoreWrapper;
 import edu.stanford.nlp.util.concurrent.ThreadsafeProcessor;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.stream.IntStream;
 
 /**
@@ -31,6 +29,13 @@ import java.util.stream.IntStream;
  * be sure to call {@link #finalizeTraining()} in order to allow the
  * classifier to clean up resources used during training.
  *
+ * Feedforward ({@link #computeScores(int[])} and
+ * {@link #argmaxScores}) only reads the weights and pre-computed
+ * tables, so it may run on many threads at once, each with its own
+ * scratch space. The tables must not be rebuilt (by
+ * {@link #preCompute()} or a training step) while feedforward calls
+ * are in flight, and activation-range calibration is single-threaded.
+ *
  * @author Danqi Chen
  * @author Jon Gauthier
  */
@@ -43,12 +48,85 @@ public class Classifier  {
   // b1: hiddenSize
   // W2: numLabels x hiddenSize
 
-  // Weight matrices
-  private final double[][] W1, W2, E;
+  // Weight matrices; released by #quantize(double[])
+  private double[][] W1, W2, E;
   private final double[] b1;
 
-  // Global gradSaved
-  private double[][] gradSaved;
+  /**
+   * Single-precision, row-major copies of {@link #E}, {@link #W1} and
+   * {@link #W2}. These replace the double matrices (which are then
+   * {@code null}) when a classifier is loaded for inference with
+   * {@link Config#floatWeights} set, or trained with
+   * {@link Config#mixedPrecision} set. Row {@code i} of a matrix with
+   * {@code n} columns begins at offset {@code i * n}. Read and update
+   * single elements through {@link #w1(int, int)} and its siblings.
+   */
+  private float[] floatE, floatW1, floatW2;
+
+  /**
+   * With {@link Config#gemmBackprop}, double-precision, row-major
+   * copies of W1 and W2 taken before each mini-batch, which are the
+   * right operands of the {@link BlockedGemm} products.
+   */
+  private double[] packedW1, packedW2;
+
+  /**
+   * Gradient buffers for each chunk of a mini-batch, allocated on the
+   * first call to {@link #computeCostFunction(int, double, double)} and
+   * reused afterwards. The other chunks' costs are merged into the
+   * first one, which holds the mini-batch totals.
+   */
+  private Cost[] chunkCosts;
+
+  /**
+   * A permutation of the training example indices. Each mini-batch is
+   * drawn by partially shuffling it in place, as
+   * {@link Util#getRandomSubList(List, int)} does with a list.
+   */
+  private int[] exampleOrder;
+
+  /**
+   * With {@link Config#epochSampling}, the number of entries of
+   * {@link #exampleOrder} drawn in the current epoch. The entries
+   * behind it are the examples not yet seen in this epoch.
+   */
+  private int epochPosition;
+
+  /**
+   * Indices of the examples in the last mini-batch drawn from the
+   * dataset, copied out of {@link #exampleOrder}
+   */
+  private int[] miniBatch;
+
+  /**
+   * Lazy regularization state (see {@link Config#lazyRegularization}).
+   * {@code regularizedUpTo[i]} is the number of AdaGrad steps whose L2
+   * decay row {@code i} of E has received; it is {@code null} unless E
+   * is regularized lazily.
+   */
+  private int[] regularizedUpTo;
+
+  /** Number of AdaGrad steps taken */
+  private int numSteps;
+
+  /**
+   * Size of the mini-batch drawn by {@link #sampleRemoteBatch(int)}
+   * into {@link #miniBatch}.
+   */
+  private int numRemoteExamples;
+
+  /**
+   * Regularization weight, learning rate and epsilon of the last
+   * AdaGrad step, used to catch up on skipped steps.
+   */
+  private double lastRegParameter, lastAdaAlpha, lastAdaEps;
+
+  /**
+   * In lazy mode, running sums of squares of W1, b1 and W2 together,
+   * and of E, from which the L2 cost is reported. {@code NaN} until
+   * first computed.
+   */
+  private double squaresW = Double.NaN, squaresE = Double.NaN;
 
   // Gradient histories
   private double[][] eg2W1, eg2W2, eg2E;
@@ -63,12 +141,90 @@ public class Classifier  {
    */
   private double[][] saved;
 
+  /**
+   * Single-precision, row-major version of {@link #saved}, used instead
+   * of it when {@link Config#floatWeights} is set. The activations for
+   * saved index {@code id} begin at offset {@code id * hiddenSize}.
+   */
+  private float[] savedFloat;
+
+  /**
+   * Dirty tracking for the pre-computed activations, which are kept
+   * from one {@link #preCompute(int[])} to the next. Every change to
+   * the weights takes a new value of {@link #weightsVersion}: a change
+   * to row {@code tok} of E is recorded in {@code eChangedAt[tok]}, and
+   * one to the W1 columns of feature position {@code pos} in
+   * {@code w1ChangedAt[pos]}. {@code savedAt[id]} is the version at
+   * which saved row {@code id} was last computed (0 if never), and the
+   * row is current if it is newer than both of its inputs.
+   */
+  private long weightsVersion;
+  private long[] eChangedAt, w1ChangedAt, savedAt;
+
+  /**
+   * Feature IDs whose saved rows are being recomputed, split into
+   * chunks among the {@link #preComputeHandler} threads.
+   */
+  private int[] staleFeatures;
+  private int numStale, numStaleChunks;
+
+  /**
+   * Recomputes stale saved rows in parallel while training with more
+   * than one thread; otherwise {@code null}.
+   */
+  private final MulticoreWrapper<Integer, Integer> preComputeHandler;
+
+  /**
+   * Fewest stale rows worth spreading across the training threads.
+   */
+  private static final int PARALLEL_PRECOMPUTE_MIN_ROWS = 1024;
+
   /**
    * Describes features which should be precomputed. Each entry maps a
    * feature ID to its destined index in the saved hidden unit
    * activation data (see {@link #saved}).
    */
-  private final Map<Integer, Integer> preMap;
+  private final IntIntMap preMap;
+
+  /**
+   * Scratch flags, indexed like {@link #saved}, marking the entries
+   * found by {@link #getToPreCompute(Dataset.Cursor)}.
+   */
+  private boolean[] preComputeSeen;
+
+  /**
+   * Int8-quantized copy of this classifier. When non-null, it serves
+   * all calls to {@code computeScores}.
+   *
+   * @see #quantize(double[])
+   */
+  private QuantizedScorer quantized;
+
+  /**
+   * On-demand replacement for {@link #saved} in an inference-only
+   * classifier when {@link Config#lazyPreCompute} is set, until it is
+   * quantized; otherwise {@code null}.
+   */
+  private PreComputeCache preComputeCache;
+
+  /**
+   * Exhaustively tabulated hidden-layer contributions for small
+   * vocabularies (see {@link #preComputeDense(int, int, int, int)}),
+   * row-major with {@code hiddenSize} columns. For feature position
+   * {@code j}, token IDs in
+   * {@code [denseFirstTok[j], denseFirstTok[j] + denseNumToks[j])}
+   * are found at row {@code denseBase[j] + tok - denseFirstTok[j]}.
+   * All {@code null} until something is tabulated, and again once the
+   * classifier is quantized.
+   */
+  private double[] dense;
+  private int[] denseFirstTok, denseNumToks, denseBase;
+
+  /**
+   * While calibrating, the largest absolute value seen so far for each
+   * cubed hidden unit; otherwise {@code null}.
+   */
+  private double[] activationRange;
 
   /**
    * Initial training state is dependent on how the classifier is
@@ -90,10 +246,23 @@ public class Classifier  {
    * Threaded job output: cost value, weight gradients for partition of
    * minibatch
    */
-  private final MulticoreWrapper<Pair<Collection<Example>, FeedforwardParams>, Cost> jobHandler;
+  private final MulticoreWrapper<FeedforwardParams, Cost> jobHandler;
+
+  /**
+   * Runs {@link HogwildWorker}s when training with
+   * {@link Config#hogwild}, in which case {@link #jobHandler} is
+   * {@code null}.
+   */
+  private final MulticoreWrapper<HogwildParams, Cost> hogwildHandler;
 
   private final Config config;
 
+  /**
+   * Dense vector primitives used by the feedforward and
+   * backpropagation loops.
+   */
+  private final Kernels kernels;
+
   /**
    * Number of possible dependency relation labels among which this
    * classifier will choose.
@@ -129,27 +298,62 @@ public class Classifier  {
    */
   public Classifier(Config config, Dataset dataset, double[][] E, double[][] W1, double[] b1, double[][] W2,
                     List<Integer> preComputed) {
+    this(config, dataset, E, W1, b1, W2, preComputed, false);
+  }
+
+  /**
+   * @param snapshot Whether this is an inference-only copy of a
+   *                 classifier in training (see {@link #snapshot()}),
+   *                 which keeps scoring as the training classifier
+   *                 does
+   */
+  private Classifier(Config config, Dataset dataset, double[][] E, double[][] W1, double[] b1, double[][] W2,
+                     List<Integer> preComputed, boolean snapshot) {
     this.config = config;
     this.dataset = dataset;
 
-    this.E = E;
-    this.W1 = W1;
+    // Training keeps double-precision master weights unless in mixed
+    // precision mode; an inference-only classifier may trade them for
+    // float copies.
+    boolean floatInference = config.floatWeights && dataset == null && !snapshot;
+    boolean useFloat = floatInference || (config.mixedPrecision && dataset != null);
+    this.E = useFloat ? null : E;
+    this.W1 = useFloat ? null : W1;
     this.b1 = b1;
-    this.W2 = W2;
+    this.W2 = useFloat ? null : W2;
 
-    initGradientHistories();
+    floatE = useFloat ? toFlatFloat(E) : null;
+    floatW1 = useFloat ? toFlatFloat(W1) : null;
+    floatW2 = useFloat ? toFlatFloat(W2) : null;
 
     numLabels = W2.length;
+    kernels = Kernels.create(config.simd);
+
+    preComputeCache = config.lazyPreCompute && dataset == null && !snapshot
+        ? new PreComputeCache(config.preComputeCacheSize)
+        : null;
+
+    if (dataset != null)
+      initGradientHistories();
+
+    if (dataset != null && config.lazyRegularization && config.doWordEmbeddingGradUpdate && !config.hogwild)
+      regularizedUpTo = new int[E.length];
 
-    preMap = new HashMap<>();
-    for (int i = 0; i < preComputed.size() && i < config.numPreComputed; ++i)
+    int numPreComputed = Math.min(preComputed.size(), config.numPreComputed);
+    preMap = new IntIntMap(numPreComputed);
+    for (int i = 0; i < numPreComputed; ++i)
       preMap.put(preComputed.get(i), i);
 
     isTraining = dataset != null;
-    if (isTraining)
-      jobHandler = new MulticoreWrapper<>(config.trainingThreads, new CostFunction(), false);
-    else
-      jobHandler = null;
+    jobHandler = isTraining && !config.hogwild
+        ? new MulticoreWrapper<>(config.trainingThreads, new CostFunction(), false)
+        : null;
+    hogwildHandler = isTraining && config.hogwild
+        ? new MulticoreWrapper<>(config.trainingThreads, new HogwildWorker(), false)
+        : null;
+    preComputeHandler = isTraining && config.trainingThreads > 1
+        ? new MulticoreWrapper<>(config.trainingThreads, new PreComputeFunction(), false)
+        : null;
   }
 
   /**
@@ -162,150 +366,584 @@ public class Classifier  {
    *
    * Each nested class instance accumulates its own weight gradients;
    * these gradients will be merged on a main thread after all cost
-   * function runs complete.
+   * function runs complete. Gradients are written into a
+   * {@link Cost} passed in with the job, whose buffers are reused from
+   * one mini-batch to the next (see {@link #chunkCosts}).
    *
    * @see #computeCostFunction(int, double, double)
    */
-  private class CostFunction implements ThreadsafeProcessor<Pair<Collection<Example>, FeedforwardParams>, Cost> {
+  private class CostFunction implements ThreadsafeProcessor<FeedforwardParams, Cost> {
+
+    /** Buffers of this thread in {@link Config#gemmBackprop} mode */
+    private BlockedBackprop blocked;
 
-    private double[][] gradW1;
-    private double[] gradb1;
-    private double[][] gradW2;
-    private double[][] gradE;
+    @Override
+    public Cost process(FeedforwardParams params) {
+      Cost result = params.getResult();
+      result.clear();
+      if (config.gemmBackprop) {
+        if (blocked == null)
+          blocked = new BlockedBackprop();
+        blocked.backprop(params.getExamples(), params.getBatchSize(), params.getDropOutProb(),
+            params.getDropOutSeed(), params.getFirstPosition(), result);
+      } else {
+        backprop(params.getExamples(), params.getBatchSize(), params.getDropOutProb(), params.getDropOutSeed(),
+            params.getFirstPosition(), true, result);
+      }
+      return result;
+    }
 
+    /**
+     * Return a new threadsafe instance.
+     */
     @Override
-    public Cost process(Pair<Collection<Example>, FeedforwardParams> input) {
-      Collection<Example> examples = input.first();
-      FeedforwardParams params = input.second();
+    public ThreadsafeProcessor<FeedforwardParams, Cost> newInstance() {
+      return new CostFunction();
+    }
+  }
 
-      // We can't fix the seed used with ThreadLocalRandom
-      // TODO: Is this a serious problem?
-      ThreadLocalRandom random = ThreadLocalRandom.current();
+  /**
+   * Feedforward and backpropagation a block of examples at a time (see
+   * {@link Config#gemmBackprop}). Per input position, the examples
+   * whose feature at that position is not pre-computed have their
+   * embeddings gathered into a matrix, which meets the position's
+   * columns of W1 in {@link BlockedGemm} products; the output layer
+   * is one product per block. Dropout is applied as a 0/1 mask.
+   * <p>
+   * Each training thread has its own instance, whose buffers are
+   * reused from one mini-batch to the next.
+   */
+  private class BlockedBackprop {
 
-      gradW1 = new double[W1.length][W1[0].length];
-      gradb1 = new double[b1.length];
-      gradW2 = new double[W2.length][W2[0].length];
-      gradE = new double[E.length][E[0].length];
+    /** Examples per block */
+    private static final int ROWS = 128;
+
+    private final int hiddenSize = config.hiddenSize, embeddingSize = config.embeddingSize;
+    private final int numTokens = config.numTokens, w1Cols = embeddingSize * numTokens;
+
+    /** Feature values, pre-computed IDs ({@link IntIntMap#NONE} if none) and labels, by example */
+    private final int[] features = new int[ROWS * numTokens];
+    private final int[] ids = new int[ROWS * numTokens];
+    private final int[] labels = new int[ROWS * numLabels];
+
+    /** Hidden-layer inputs, activations and their gradients, by example */
+    private final double[] hidden = new double[ROWS * hiddenSize];
+    private final double[] hidden3 = new double[ROWS * hiddenSize];
+    private final double[] gradHidden = new double[ROWS * hiddenSize];
+    private final double[] mask = new double[ROWS * hiddenSize];
+
+    /** Scores, then their gradients, by example */
+    private final double[] scores = new double[ROWS * numLabels];
+
+    /**
+     * For one input position: the examples that use W1 directly, their
+     * embeddings and gradients, and their hidden-layer rows
+     */
+    private final int[] rows = new int[ROWS];
+    private final double[] x = new double[ROWS * embeddingSize];
+    private final double[] gradX = new double[ROWS * embeddingSize];
+    private final double[] part = new double[ROWS * hiddenSize];
+
+    private final int[] active = new int[hiddenSize];
+
+    /**
+     * Same contract as
+     * {@link Classifier#backprop(Dataset.Cursor, int, double, long, int, boolean, Cost)}
+     * with pre-computed values.
+     */
+    private void backprop(Dataset.Cursor examples, int batchSize, double dropOutProb, long dropOutSeed,
+                          int firstPosition, Cost result) {
+      if (dropOutProb <= 0.0)
+        Arrays.fill(mask, 1.0);
 
       double cost = 0.0;
       double correct = 0.0;
+      for (int position = firstPosition; ; ) {
+        int m = 0;
+        while (m < ROWS && examples.next()) {
+          for (int j = 0; j < numTokens; ++j) {
+            int tok = examples.feature(j);
+            features[m * numTokens + j] = tok;
+            ids[m * numTokens + j] = preMap.get(tok * numTokens + j);
+          }
+          for (int i = 0; i < numLabels; ++i)
+            labels[m * numLabels + i] = examples.label(i);
+          ++m;
+        }
+        if (m == 0)
+          break;
+
+        if (dropOutProb > 0.0) {
+          Arrays.fill(mask, 0, m * hiddenSize, 0.0);
+          for (int r = 0; r < m; ++r) {
+            int numActive = drawDropOutMask(dropOutSeed, position + r, dropOutProb, active);
+            for (int k = 0; k < numActive; ++k)
+              mask[r * hiddenSize + active[k]] = 1.0;
+          }
+        }
+
+        forward(m);
 
-      for (Example ex : examples) {
-        List<Integer> feature = ex.getFeature();
-        List<Integer> label = ex.getLabel();
-
-        double[] scores = new double[numLabels];
-        double[] hidden = new double[config.hiddenSize];
-        double[] hidden3 = new double[config.hiddenSize];
-
-        // Run dropout: randomly drop some hidden-layer units. `ls`
-        // contains the indices of those units which are still active
-        int[] ls = IntStream.range(0, config.hiddenSize)
-                            .filter(n -> random.nextDouble() > params.getDropOutProb())
-                            .toArray();
-
-        int offset = 0;
-        for (int j = 0; j < config.numTokens; ++j) {
-          int tok = feature.get(j);
-          int index = tok * config.numTokens + j;
-
-          if (preMap.containsKey(index)) {
-            // Unit activations for this input feature value have been
-            // precomputed
-            int id = preMap.get(index);
-
-            // Only extract activations for those nodes which are still
-            // activated (`ls`)
-            for (int nodeIndex : ls)
-              hidden[nodeIndex] += saved[id][nodeIndex];
-          } else {
-            for (int nodeIndex : ls) {
-              for (int k = 0; k < config.embeddingSize; ++k)
-                hidden[nodeIndex] += W1[nodeIndex][offset + k] * E[tok][k];
+        for (int r = 0; r < m; ++r) {
+          int scoreBase = r * numLabels, labelBase = r * numLabels;
+          int optLabel = -1;
+          for (int i = 0; i < numLabels; ++i) {
+            if (labels[labelBase + i] >= 0 && (optLabel < 0 || scores[scoreBase + i] > scores[scoreBase + optLabel]))
+              optLabel = i;
+          }
+
+          double sum1 = 0.0;
+          double sum2 = 0.0;
+          double maxScore = scores[scoreBase + optLabel];
+          for (int i = 0; i < numLabels; ++i) {
+            if (labels[labelBase + i] >= 0) {
+              scores[scoreBase + i] = Math.exp(scores[scoreBase + i] - maxScore);
+              if (labels[labelBase + i] == 1) sum1 += scores[scoreBase + i];
+              sum2 += scores[scoreBase + i];
             }
           }
-          offset += config.embeddingSize;
+          cost += (Math.log(sum2) - Math.log(sum1)) / batchSize;
+          if (labels[labelBase + optLabel] == 1)
+            correct += +1.0 / batchSize;
+
+          // Scores become their gradients; labels that do not apply
+          // get none
+          for (int i = 0; i < numLabels; ++i)
+            scores[scoreBase + i] = labels[labelBase + i] >= 0
+                ? -(labels[labelBase + i] - scores[scoreBase + i] / sum2) / batchSize
+                : 0.0;
         }
 
-        // Add bias term and apply activation function
-        for (int nodeIndex : ls) {
-          hidden[nodeIndex] += b1[nodeIndex];
-          hidden3[nodeIndex] = Math.pow(hidden[nodeIndex], 3);
+        backward(m, result);
+        position += m;
+      }
+
+      result.cost += cost;
+      result.percentCorrect += correct;
+    }
+
+    /**
+     * Compute the hidden-layer inputs and activations and the scores of
+     * the first {@code m} examples.
+     */
+    private void forward(int m) {
+      Arrays.fill(hidden, 0, m * hiddenSize, 0.0);
+      for (int r = 0; r < m; ++r) {
+        for (int j = 0; j < numTokens; ++j) {
+          int id = ids[r * numTokens + j];
+          if (id == IntIntMap.NONE)
+            continue;
+          if (savedFloat != null)
+            kernels.add(savedFloat, id * hiddenSize, hidden, r * hiddenSize, hiddenSize);
+          else
+            kernels.add(saved[id], 0, hidden, r * hiddenSize, hiddenSize);
         }
+      }
 
-        // Feed forward to softmax layer (no activation yet)
-        int optLabel = -1;
-        for (int i = 0; i < numLabels; ++i) {
-          if (label.get(i) >= 0) {
-            for (int nodeIndex : ls)
-              scores[i] += W2[i][nodeIndex] * hidden3[nodeIndex];
+      for (int j = 0; j < numTokens; ++j) {
+        int numRows = gatherEmbeddings(m, j);
+        if (numRows == 0)
+          continue;
+        Arrays.fill(part, 0, numRows * hiddenSize, 0.0);
+        BlockedGemm.multiplyTransposed(kernels, numRows, hiddenSize, embeddingSize, x, packedW1, j * embeddingSize,
+            w1Cols, part);
+        for (int q = 0; q < numRows; ++q)
+          kernels.add(part, q * hiddenSize, hidden, rows[q] * hiddenSize, hiddenSize);
+      }
 
-            if (optLabel < 0 || scores[i] > scores[optLabel])
-              optLabel = i;
-          }
+      // Add bias term and apply activation function, cubing by
+      // multiplication as Kernels#biasCube does; dropped units are zero
+      // in `hidden3`
+      for (int r = 0; r < m; ++r) {
+        for (int k = 0, idx = r * hiddenSize; k < hiddenSize; ++k, ++idx) {
+          double h = hidden[idx] + b1[k];
+          hidden[idx] = h;
+          hidden3[idx] = mask[idx] != 0.0 ? h * h * h : 0.0;
         }
+      }
 
-        double sum1 = 0.0;
-        double sum2 = 0.0;
-        double maxScore = scores[optLabel];
-        for (int i = 0; i < numLabels; ++i) {
-          if (label.get(i) >= 0) {
-            scores[i] = Math.exp(scores[i] - maxScore);
-            if (label.get(i) == 1) sum1 += scores[i];
-            sum2 += scores[i];
-          }
+      Arrays.fill(scores, 0, m * numLabels, 0.0);
+      BlockedGemm.multiplyTransposed(kernels, m, numLabels, hiddenSize, hidden3, packedW2, 0, hiddenSize, scores);
+    }
+
+    /**
+     * Backpropagate the score gradients of the first {@code m}
+     * examples and add the weight gradients to {@code result}.
+     */
+    private void backward(int m, Cost result) {
+      BlockedGemm.multiplyTransposedLeft(kernels, numLabels, hiddenSize, m, scores, hidden3, result.gradW2, 0);
+
+      Arrays.fill(gradHidden, 0, m * hiddenSize, 0.0);
+      BlockedGemm.multiply(kernels, m, hiddenSize, numLabels, scores, packedW2, 0, hiddenSize, gradHidden);
+      for (int r = 0; r < m; ++r) {
+        for (int k = 0, idx = r * hiddenSize; k < hiddenSize; ++k, ++idx) {
+          gradHidden[idx] = mask[idx] != 0.0 ? gradHidden[idx] * 3 * hidden[idx] * hidden[idx] : 0.0;
+          result.gradb1[k] += gradHidden[idx];
         }
-        //this part is the normalization, can apply + oracle serve as the denominator.
-        cost += (Math.log(sum2) - Math.log(sum1)) / params.getBatchSize();
-        if (label.get(optLabel) == 1)
-          correct += +1.0 / params.getBatchSize();
-
-        double[] gradHidden3 = new double[config.hiddenSize];
-        for (int i = 0; i < numLabels; ++i)
-          if (label.get(i) >= 0) {
-            double delta = -(label.get(i) - scores[i] / sum2) / params.getBatchSize();
-            for (int nodeIndex : ls) {
-              gradW2[i][nodeIndex] += delta * hidden3[nodeIndex];
-              gradHidden3[nodeIndex] += delta * W2[i][nodeIndex];
-            }
-          }
+        for (int j = 0; j < numTokens; ++j) {
+          int id = ids[r * numTokens + j];
+          if (id != IntIntMap.NONE)
+            kernels.add(gradHidden, r * hiddenSize, result.gradSaved[id], 0, hiddenSize);
+        }
+      }
 
-        double[] gradHidden = new double[config.hiddenSize];
-        for (int nodeIndex : ls) {
-          gradHidden[nodeIndex] = gradHidden3[nodeIndex] * 3 * hidden[nodeIndex] * hidden[nodeIndex];
-          gradb1[nodeIndex] += gradHidden[nodeIndex];
+      SparseRowMatrix gradE = result.gradE;
+      for (int j = 0; j < numTokens; ++j) {
+        int numRows = gatherEmbeddings(m, j);
+        if (numRows == 0)
+          continue;
+        for (int q = 0; q < numRows; ++q)
+          System.arraycopy(gradHidden, rows[q] * hiddenSize, part, q * hiddenSize, hiddenSize);
+
+        BlockedGemm.multiplyTransposedLeft(kernels, hiddenSize, embeddingSize, numRows, part, x, result.gradW1,
+            j * embeddingSize);
+
+        Arrays.fill(gradX, 0, numRows * embeddingSize, 0.0);
+        BlockedGemm.multiply(kernels, numRows, embeddingSize, hiddenSize, part, packedW1, j * embeddingSize, w1Cols,
+            gradX);
+        for (int q = 0; q < numRows; ++q) {
+          int gradEOffset = gradE.touch(features[rows[q] * numTokens + j]);
+          kernels.add(gradX, q * embeddingSize, gradE.values(), gradEOffset, embeddingSize);
         }
+      }
+    }
 
-        offset = 0;
-        for (int j = 0; j < config.numTokens; ++j) {
-          int tok = feature.get(j);
-          int index = tok * config.numTokens + j;
-          if (preMap.containsKey(index)) {
-            int id = preMap.get(index);
-            for (int nodeIndex : ls)
-              gradSaved[id][nodeIndex] += gradHidden[nodeIndex];
-          } else {
-            for (int nodeIndex : ls) {
-              for (int k = 0; k < config.embeddingSize; ++k) {
-                gradW1[nodeIndex][offset + k] += gradHidden[nodeIndex] * E[tok][k];
-                gradE[tok][k] += gradHidden[nodeIndex] * W1[nodeIndex][offset + k];
-              }
-            }
+    /**
+     * Collect in {@link #rows} the examples among the first {@code m}
+     * whose feature at input position {@code j} is not pre-computed,
+     * and their embeddings in {@link #x}.
+     *
+     * @return Number of such examples
+     */
+    private int gatherEmbeddings(int m, int j) {
+      int numRows = 0;
+      for (int r = 0; r < m; ++r) {
+        if (ids[r * numTokens + j] != IntIntMap.NONE)
+          continue;
+        int tok = features[r * numTokens + j];
+        if (E != null) {
+          System.arraycopy(E[tok], 0, x, numRows * embeddingSize, embeddingSize);
+        } else {
+          for (int p = 0; p < embeddingSize; ++p)
+            x[numRows * embeddingSize + p] = floatE[tok * embeddingSize + p];
+        }
+        rows[numRows++] = r;
+      }
+      return numRows;
+    }
+
+  }
+
+  /**
+   * Feed the remaining examples of a cursor forward through the
+   * network, backpropagate their errors and add their cost, accuracy
+   * and weight gradients (each scaled by {@code 1 / batchSize}) to
+   * {@code result}.
+   *
+   * @param dropOutSeed    Seed of the mini-batch's dropout masks (see
+   *                       {@link #drawDropOutMask})
+   * @param firstPosition  Position of the cursor's first example in
+   *                       the mini-batch
+   * @param usePreComputed Whether to read hidden-layer contributions
+   *                       from the pre-computed table, which must be
+   *                       current for these examples, and to collect
+   *                       their gradients in {@code result}'s
+   *                       {@link Cost#gradSaved}
+   */
+  private void backprop(Dataset.Cursor examples, int batchSize, double dropOutProb, long dropOutSeed,
+                        int firstPosition, boolean usePreComputed, Cost result) {
+    // Indices of the hidden units left active by dropout, at the front
+    int[] active = IntStream.range(0, config.hiddenSize).toArray();
+    int numActive = config.hiddenSize;
+
+    // Per-example buffers, reused across the chunk. Entries of dropped
+    // units in `hidden3` and the sums in `hidden` and `gradHidden3` are
+    // reset for each example; the others are written before they are
+    // read.
+    double[] scores = new double[numLabels];
+    double[] hidden = new double[config.hiddenSize];
+    double[] hidden3 = new double[config.hiddenSize];
+    double[] gradHidden3 = new double[config.hiddenSize];
+    double[] gradHidden = new double[config.hiddenSize];
+
+    double[][] gradW1 = result.gradW1, gradW2 = result.gradW2;
+    double[] gradb1 = result.gradb1;
+    double[][] gradSaved = result.gradSaved;
+    SparseRowMatrix gradE = result.gradE;
+    int w1Cols = config.embeddingSize * config.numTokens;
+
+    double cost = 0.0;
+    double correct = 0.0;
+
+    for (int position = firstPosition; examples.next(); ++position) {
+      Arrays.fill(hidden, 0.0);
+      Arrays.fill(hidden3, 0.0);
+      Arrays.fill(gradHidden3, 0.0);
+
+      // Run dropout: randomly drop some hidden-layer units
+      if (dropOutProb > 0.0)
+        numActive = drawDropOutMask(dropOutSeed, position, dropOutProb, active);
+
+      int offset = 0;
+      for (int j = 0; j < config.numTokens; ++j) {
+        int tok = examples.feature(j);
+        int index = tok * config.numTokens + j;
+
+        int id = usePreComputed ? preMap.get(index) : IntIntMap.NONE;
+        if (id != IntIntMap.NONE) {
+          // Unit activations for this input feature value have been
+          // precomputed
+
+          // Whole rows are added, as this vectorizes; values of
+          // dropped units are never read
+          if (savedFloat != null)
+            kernels.add(savedFloat, id * config.hiddenSize, hidden, 0, config.hiddenSize);
+          else
+            kernels.add(saved[id], 0, hidden, 0, config.hiddenSize);
+        } else {
+          for (int k = 0; k < numActive; ++k) {
+            int nodeIndex = active[k];
+            hidden[nodeIndex] += floatW1 != null
+                ? kernels.dot(floatW1, nodeIndex * w1Cols + offset, floatE, tok * config.embeddingSize,
+                    config.embeddingSize)
+                : kernels.dot(W1[nodeIndex], offset, E[tok], 0, config.embeddingSize);
           }
-          offset += config.embeddingSize;
         }
+        offset += config.embeddingSize;
+      }
+
+      // Add bias term and apply activation function
+      for (int k = 0; k < numActive; ++k) {
+        int nodeIndex = active[k];
+        hidden[nodeIndex] += b1[nodeIndex];
+        hidden3[nodeIndex] = Math.pow(hidden[nodeIndex], 3);
+      }
+
+      // Feed forward to softmax layer (no activation yet). Dropped
+      // units are zero in `hidden3`, so full rows can be used.
+      int optLabel = -1;
+      for (int i = 0; i < numLabels; ++i) {
+        if (examples.label(i) >= 0) {
+          scores[i] = floatW2 != null
+              ? kernels.dot(floatW2, i * config.hiddenSize, hidden3, 0, config.hiddenSize)
+              : kernels.dot(W2[i], 0, hidden3, 0, config.hiddenSize);
+
+          if (optLabel < 0 || scores[i] > scores[optLabel])
+            optLabel = i;
+        }
+      }
+
+      double sum1 = 0.0;
+      double sum2 = 0.0;
+      double maxScore = scores[optLabel];
+      for (int i = 0; i < numLabels; ++i) {
+        if (examples.label(i) >= 0) {
+          scores[i] = Math.exp(scores[i] - maxScore);
+          if (examples.label(i) == 1) sum1 += scores[i];
+          sum2 += scores[i];
+        }
+      }
+      //this part is the normalization, can apply + oracle serve as the denominator.
+      cost += (Math.log(sum2) - Math.log(sum1)) / batchSize;
+      if (examples.label(optLabel) == 1)
+        correct += +1.0 / batchSize;
+
+      for (int i = 0; i < numLabels; ++i)
+        if (examples.label(i) >= 0) {
+          double delta = -(examples.label(i) - scores[i] / sum2) / batchSize;
+          kernels.axpy(delta, hidden3, 0, gradW2[i], 0, config.hiddenSize);
+          if (floatW2 != null)
+            kernels.axpy(delta, floatW2, i * config.hiddenSize, gradHidden3, 0, config.hiddenSize);
+          else
+            kernels.axpy(delta, W2[i], 0, gradHidden3, 0, config.hiddenSize);
+        }
+
+      for (int k = 0; k < numActive; ++k) {
+        int nodeIndex = active[k];
+        gradHidden[nodeIndex] = gradHidden3[nodeIndex] * 3 * hidden[nodeIndex] * hidden[nodeIndex];
+        gradb1[nodeIndex] += gradHidden[nodeIndex];
+      }
+
+      offset = 0;
+      for (int j = 0; j < config.numTokens; ++j) {
+        int tok = examples.feature(j);
+        int index = tok * config.numTokens + j;
+        int id = usePreComputed ? preMap.get(index) : IntIntMap.NONE;
+        if (id != IntIntMap.NONE) {
+          for (int k = 0; k < numActive; ++k)
+            gradSaved[id][active[k]] += gradHidden[active[k]];
+        } else {
+          int gradEOffset = gradE.touch(tok);
+          double[] gradEValues = gradE.values();
+          for (int k = 0; k < numActive; ++k)
+            backpropHidden(gradHidden[active[k]], active[k], tok, offset, gradW1, gradEValues, gradEOffset);
+        }
+        offset += config.embeddingSize;
       }
+    }
+
+    result.cost += cost;
+    result.percentCorrect += correct;
+  }
+
+  /**
+   * Draw the dropout mask of the example at {@code position} in a
+   * mini-batch. Each example has its own random stream, derived from
+   * the mini-batch's seed and the position, so masks depend neither
+   * on how the mini-batch is split among threads nor on the order in
+   * which the chunks run.
+   *
+   * The draw for unit {@code i} is a pure function of the seed, the
+   * position and {@code i}: it is the {@code i}-th double of a
+   * {@link SplittableRandom} seeded with the example's stream seed,
+   * computed in place so that no generator is created per example.
+   *
+   * @param active Receives the indices of the units kept, in order
+   * @return Number of units kept
+   */
+  private int drawDropOutMask(long seed, int position, double dropOutProb, int[] active) {
+    long stream = seed ^ position * GOLDEN_GAMMA;
+    int numActive = 0;
+    for (int i = 0; i < config.hiddenSize; ++i)
+      if ((mix64(stream + (i + 1) * GOLDEN_GAMMA) >>> 11) * 0x1.0p-53 > dropOutProb)
+        active[numActive++] = i;
+    return numActive;
+  }
+
+  /** Seed increment of {@link SplittableRandom} */
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  /**
+   * The output function of {@link SplittableRandom} (Stafford's
+   * variant 13 of the MurmurHash3 finalizer).
+   */
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
 
-      return new Cost(cost, correct, gradW1, gradb1, gradW2, gradE);
+  /**
+   * Add the gradient {@code delta} of hidden unit {@code i}'s input
+   * to the W1 columns of one feature position (starting at
+   * {@code offset}) and to the E row {@code tok} feeding it.
+   */
+  private void backpropHidden(double delta, int i, int tok, int offset, double[][] gradW1, double[] gradEValues,
+                              int gradEOffset) {
+    int embeddingSize = config.embeddingSize;
+    if (floatW1 != null) {
+      int w1Base = i * embeddingSize * config.numTokens + offset;
+      kernels.axpy(delta, floatE, tok * embeddingSize, gradW1[i], offset, embeddingSize);
+      kernels.axpy(delta, floatW1, w1Base, gradEValues, gradEOffset, embeddingSize);
+    } else {
+      kernels.axpy(delta, E[tok], 0, gradW1[i], offset, embeddingSize);
+      kernels.axpy(delta, W1[i], offset, gradEValues, gradEOffset, embeddingSize);
     }
+  }
+
+  /**
+   * Hogwild training worker (see {@link Config#hogwild}).
+   *
+   * Each run samples mini-batches of {@link Config#hogwildBatchSize}
+   * examples and applies the AdaGrad update of each straight to the
+   * shared weights and gradient histories, while other workers read
+   * and write the same arrays without synchronization (Recht et al.,
+   * 2011). Pre-computed activations are not used, since they would go
+   * stale between updates: every feature goes through W1 and E.
+   *
+   * The worker's gradients are only ever non-zero where a mini-batch
+   * reached, and {@link #applyHogwildUpdate} clears what it applies,
+   * so no step costs a dense pass over the weights.
+   */
+  private class HogwildWorker implements ThreadsafeProcessor<HogwildParams, Cost> {
+
+    private final Cost gradients = new Cost();
+    private final int[] miniBatch = new int[Math.max(1, config.hogwildBatchSize)];
+    private final int[] active = new int[config.hiddenSize];
+    private final boolean[] unitActive = new boolean[config.hiddenSize];
 
     /**
-     * Return a new threadsafe instance.
+     * @return Summed (not averaged) cost and accuracy over the examples
+     *         processed
      */
     @Override
-    public ThreadsafeProcessor<Pair<Collection<Example>, FeedforwardParams>, Cost> newInstance() {
-      return new CostFunction();
+    public Cost process(HogwildParams params) {
+      SplittableRandom random = new SplittableRandom(params.seed);
+
+      double cost = 0.0;
+      double correct = 0.0;
+      for (int done = 0; done < params.numExamples; ) {
+        int size = Math.min(miniBatch.length, params.numExamples - done);
+        for (int k = 0; k < size; ++k)
+          miniBatch[k] = random.nextInt(params.examples.n);
+        done += size;
+
+        long dropOutSeed = random.nextLong();
+        backprop(params.examples.cursor(miniBatch, 0, size), size, params.dropOutProb, dropOutSeed, 0, false,
+            gradients);
+        cost += gradients.cost * size;
+        correct += gradients.percentCorrect * size;
+
+        markActiveUnits(dropOutSeed, size, params.dropOutProb);
+        applyHogwildUpdate(gradients, unitActive, params);
+      }
+      return new Cost(cost, correct);
+    }
+
+    /**
+     * Mark in {@link #unitActive} the hidden units that the dropout
+     * masks of a mini-batch of {@code size} examples left active in at
+     * least one example.
+     */
+    private void markActiveUnits(long dropOutSeed, int size, double dropOutProb) {
+      if (dropOutProb <= 0.0) {
+        Arrays.fill(unitActive, true);
+        return;
+      }
+      Arrays.fill(unitActive, false);
+      for (int position = 0; position < size; ++position) {
+        int numActive = drawDropOutMask(dropOutSeed, position, dropOutProb, active);
+        for (int k = 0; k < numActive; ++k)
+          unitActive[active[k]] = true;
+      }
+    }
+
+    @Override
+    public ThreadsafeProcessor<HogwildParams, Cost> newInstance() {
+      return new HogwildWorker();
+    }
+  }
+
+  /**
+   * Describes one Hogwild worker run.
+   */
+  private static class HogwildParams {
+
+    /** Examples to sample from */
+    private final Dataset examples;
+
+    /** Number of examples to sample and train on */
+    private final int numExamples;
+
+    /** Seed of the worker's example sampling and dropout masks */
+    private final long seed;
+
+    private final double dropOutProb;
+    private final double regParameter;
+    private final double adaAlpha;
+    private final double adaEps;
+
+    private HogwildParams(Dataset examples, int numExamples, long seed, double dropOutProb, double regParameter,
+                          double adaAlpha, double adaEps) {
+      this.examples = examples;
+      this.numExamples = numExamples;
+      this.seed = seed;
+      this.dropOutProb = dropOutProb;
+      this.regParameter = regParameter;
+      this.adaAlpha = adaAlpha;
+      this.adaEps = adaEps;
     }
+
   }
 
   /**
@@ -322,9 +960,30 @@ public class Classifier  {
 
     private final double dropOutProb;
 
-    private FeedforwardParams(int batchSize, double dropOutProb) {
+    /** Seed of the mini-batch's dropout masks */
+    private final long dropOutSeed;
+
+    /** Position of the chunk's first example in the mini-batch */
+    private final int firstPosition;
+
+    /**
+     * Chunk of the mini-batch to process.
+     */
+    private final Dataset.Cursor examples;
+
+    /**
+     * Where the cost and gradients of this chunk are accumulated.
+     */
+    private final Cost result;
+
+    private FeedforwardParams(int batchSize, double dropOutProb, long dropOutSeed, int firstPosition,
+                              Dataset.Cursor examples, Cost result) {
       this.batchSize = batchSize;
       this.dropOutProb = dropOutProb;
+      this.dropOutSeed = dropOutSeed;
+      this.firstPosition = firstPosition;
+      this.examples = examples;
+      this.result = result;
     }
 
     public int getBatchSize() {
@@ -335,6 +994,22 @@ public class Classifier  {
       return dropOutProb;
     }
 
+    public long getDropOutSeed() {
+      return dropOutSeed;
+    }
+
+    public int getFirstPosition() {
+      return firstPosition;
+    }
+
+    public Dataset.Cursor getExamples() {
+      return examples;
+    }
+
+    public Cost getResult() {
+      return result;
+    }
+
   }
 
   /**
@@ -342,7 +1017,9 @@ public class Classifier  {
    * the neural network for the batch provided to a `CostFunction.`
    * <p>
    * The members of this class represent weight deltas computed by
-   * backpropagation.
+   * backpropagation. Instances are reused across mini-batches, so a
+   * {@code Cost} is only valid until the next call to
+   * {@link #computeCostFunction(int, double, double)}.
    *
    * @see Classifier.CostFunction
    */
@@ -353,21 +1030,66 @@ public class Classifier  {
     // Percent of training examples predicted correctly
     private double percentCorrect;
 
-    // Weight deltas
+    // Weight deltas. Only the rows of E used by the mini-batch get a
+    // data gradient, so gradE is kept sparse.
     private final double[][] gradW1;
     private final double[] gradb1;
     private final double[][] gradW2;
-    private final double[][] gradE;
+    private final SparseRowMatrix gradE;
+
+    /**
+     * Gradients of the pre-computed hidden-layer contributions, indexed
+     * like {@link Classifier#saved}. Each chunk of a mini-batch writes
+     * its own, and {@link #mergeSaved} sums them before
+     * {@link #backpropSaved} reads them. Allocated by
+     * {@link Classifier#computeCostFunction}.
+     */
+    private double[][] gradSaved;
+
+    /**
+     * L2 weight applied to E. The regularization gradient of an
+     * untouched row of {@link #gradE} is left implicit: it is
+     * {@code embeddingRegularization * E[i]}.
+     */
+    private double embeddingRegularization;
+
+    /**
+     * L2 weight still to be applied to W1, b1 and W2 in the AdaGrad
+     * step. Nonzero only with lazy regularization.
+     */
+    private double weightRegularization;
 
-    private Cost(double cost, double percentCorrect, double[][] gradW1, double[] gradb1, double[][] gradW2,
-                 double[][] gradE) {
+    /**
+     * Cost without gradients, as reported by Hogwild training.
+     */
+    private Cost(double cost, double percentCorrect) {
       this.cost = cost;
       this.percentCorrect = percentCorrect;
+      gradW1 = null;
+      gradb1 = null;
+      gradW2 = null;
+      gradE = null;
+    }
+
+    private Cost() {
+      gradW1 = new double[config.hiddenSize][config.embeddingSize * config.numTokens];
+      gradb1 = new double[b1.length];
+      gradW2 = new double[numLabels][config.hiddenSize];
+      gradE = new SparseRowMatrix(numEmbeddings(), config.embeddingSize);
+    }
 
-      this.gradW1 = gradW1;
-      this.gradb1 = gradb1;
-      this.gradW2 = gradW2;
-      this.gradE = gradE;
+    /**
+     * Reset cost and gradients to zero.
+     */
+    void clear() {
+      cost = 0.0;
+      percentCorrect = 0.0;
+      zero(gradW1);
+      Arrays.fill(gradb1, 0.0);
+      zero(gradW2);
+      gradE.clear();
+      embeddingRegularization = 0.0;
+      weightRegularization = 0.0;
     }
 
     /**
@@ -383,29 +1105,92 @@ public class Classifier  {
       addInPlace(gradW1, otherCost.getGradW1());
       addInPlace(gradb1, otherCost.getGradb1());
       addInPlace(gradW2, otherCost.getGradW2());
-      addInPlace(gradE, otherCost.getGradE());
+      gradE.addInPlace(otherCost.gradE);
     }
 
     /**
-     * Backpropagate gradient values from gradSaved into the gradients
-     * for the E vectors that generated them.
-     *
-     * @param featuresSeen Feature IDs observed during training for
-     *                     which gradSaved values need to be backprop'd
-     *                     into gradE
+     * Send the cost, accuracy and data gradients of a parameter-server
+     * worker's mini-batch, with only the touched rows of the embedding
+     * gradient. Regularization is left to the server.
      */
-    private void backpropSaved(Set<Integer> featuresSeen) {
-      for (int x : featuresSeen) {
-        int mapX = preMap.get(x);
+    void write(DataOutputStream out) throws IOException {
+      out.writeDouble(cost);
+      out.writeDouble(percentCorrect);
+      for (double[] row : gradW1)
+        for (double g : row)
+          out.writeDouble(g);
+      for (double g : gradb1)
+        out.writeDouble(g);
+      for (double[] row : gradW2)
+        for (double g : row)
+          out.writeDouble(g);
+
+      double[] gradEValues = gradE.values();
+      out.writeInt(gradE.numTouched());
+      for (int k = 0; k < gradE.numTouched(); ++k) {
+        int i = gradE.touchedRow(k);
+        int gradEOffset = gradE.offset(i);
+        out.writeInt(i);
+        for (int j = 0; j < config.embeddingSize; ++j)
+          out.writeDouble(gradEValues[gradEOffset + j]);
+      }
+    }
+
+    /**
+     * Add a cost sent by {@link #write(DataOutputStream)} to this one.
+     */
+    void read(DataInputStream in) throws IOException {
+      cost += in.readDouble();
+      percentCorrect += in.readDouble();
+      for (double[] row : gradW1)
+        for (int j = 0; j < row.length; ++j)
+          row[j] += in.readDouble();
+      for (int i = 0; i < gradb1.length; ++i)
+        gradb1[i] += in.readDouble();
+      for (double[] row : gradW2)
+        for (int j = 0; j < row.length; ++j)
+          row[j] += in.readDouble();
+
+      int numTouched = in.readInt();
+      for (int k = 0; k < numTouched; ++k) {
+        int gradEOffset = gradE.touch(in.readInt());
+        double[] gradEValues = gradE.values();
+        for (int j = 0; j < config.embeddingSize; ++j)
+          gradEValues[gradEOffset + j] += in.readDouble();
+      }
+    }
+
+    /**
+     * Add the gradSaved rows of another chunk's costs to those of this
+     * instance.
+     *
+     * @param featuresSeen Feature IDs whose rows were written during
+     *                     the mini-batch
+     */
+    private void mergeSaved(Cost otherCost, int[] featuresSeen) {
+      for (int x : featuresSeen) {
+        int mapX = preMap.get(x);
+        addInPlace(gradSaved[mapX], otherCost.gradSaved[mapX]);
+      }
+    }
+
+    /**
+     * Backpropagate gradient values from gradSaved into the gradients
+     * for the E vectors that generated them.
+     *
+     * @param featuresSeen Feature IDs observed during training for
+     *                     which gradSaved values need to be backprop'd
+     *                     into gradE
+     */
+    private void backpropSaved(int[] featuresSeen) {
+      for (int x : featuresSeen) {
+        int mapX = preMap.get(x);
         int tok = x / config.numTokens;
         int offset = (x % config.numTokens) * config.embeddingSize;
-        for (int j = 0; j < config.hiddenSize; ++j) {
-          double delta = gradSaved[mapX][j];
-          for (int k = 0; k < config.embeddingSize; ++k) {
-            gradW1[j][offset + k] += delta * E[tok][k];
-            gradE[tok][k] += delta * W1[j][offset + k];
-          }
-        }
+        int gradEOffset = gradE.touch(tok);
+        double[] gradEValues = gradE.values();
+        for (int j = 0; j < config.hiddenSize; ++j)
+          backpropHidden(gradSaved[mapX][j], j, tok, offset, gradW1, gradEValues, gradEOffset);
       }
     }
 
@@ -413,11 +1198,17 @@ public class Classifier  {
      * Add L2 regularization cost to the gradients associated with this
      * instance.
      */
-    private void addL2Regularization(double regularizationWeight) {
-      for (int i = 0; i < W1.length; ++i) {
-        for (int j = 0; j < W1[i].length; ++j) {
-          cost += regularizationWeight * W1[i][j] * W1[i][j] / 2.0;
-          gradW1[i][j] += regularizationWeight * W1[i][j];
+    void addL2Regularization(double regularizationWeight) {
+      if (config.lazyRegularization) {
+        addLazyL2Regularization(regularizationWeight);
+        return;
+      }
+
+      for (int i = 0; i < gradW1.length; ++i) {
+        for (int j = 0; j < gradW1[i].length; ++j) {
+          double w = w1(i, j);
+          cost += regularizationWeight * w * w / 2.0;
+          gradW1[i][j] += regularizationWeight * w;
         }
       }
 
@@ -426,19 +1217,55 @@ public class Classifier  {
         gradb1[i] += regularizationWeight * b1[i];
       }
 
-      for (int i = 0; i < W2.length; ++i) {
-        for (int j = 0; j < W2[i].length; ++j) {
-          cost += regularizationWeight * W2[i][j] * W2[i][j] / 2.0;
-          gradW2[i][j] += regularizationWeight * W2[i][j];
+      for (int i = 0; i < gradW2.length; ++i) {
+        for (int j = 0; j < gradW2[i].length; ++j) {
+          double w = w2(i, j);
+          cost += regularizationWeight * w * w / 2.0;
+          gradW2[i][j] += regularizationWeight * w;
         }
       }
 
-      for (int i = 0; i < E.length; ++i) {
-        for (int j = 0; j < E[i].length; ++j) {
-          cost += regularizationWeight * E[i][j] * E[i][j] / 2.0;
-          gradE[i][j] += regularizationWeight * E[i][j];
+      for (int i = 0; i < numEmbeddings(); ++i) {
+        for (int j = 0; j < config.embeddingSize; ++j) {
+          double e = e(i, j);
+          cost += regularizationWeight * e * e / 2.0;
         }
       }
+
+      // Only touched rows of gradE are materialized; the rest are
+      // regularized in takeAdaGradientStep
+      double[] gradEValues = gradE.values();
+      for (int k = 0; k < gradE.numTouched(); ++k) {
+        int i = gradE.touchedRow(k);
+        int gradEOffset = gradE.offset(i);
+        for (int j = 0; j < config.embeddingSize; ++j)
+          gradEValues[gradEOffset + j] += regularizationWeight * e(i, j);
+      }
+      embeddingRegularization = regularizationWeight;
+    }
+
+    /**
+     * Lazy form of {@link #addL2Regularization(double)}: the cost comes
+     * from running sums of squares, touched rows of E are regularized
+     * as usual, W1, b1 and W2 are regularized during the AdaGrad step,
+     * and untouched rows of E wait for {@link #catchUp(int)}.
+     */
+    private void addLazyL2Regularization(double regularizationWeight) {
+      if (Double.isNaN(squaresW))
+        squaresW = (W1 != null ? sumOfSquares(W1) : sumOfSquares(floatW1)) + sumOfSquares(new double[][] { b1 })
+            + (W2 != null ? sumOfSquares(W2) : sumOfSquares(floatW2));
+      if (Double.isNaN(squaresE))
+        squaresE = E != null ? sumOfSquares(E) : sumOfSquares(floatE);
+      cost += regularizationWeight * (squaresW + squaresE) / 2.0;
+
+      double[] gradEValues = gradE.values();
+      for (int k = 0; k < gradE.numTouched(); ++k) {
+        int i = gradE.touchedRow(k);
+        int gradEOffset = gradE.offset(i);
+        for (int j = 0; j < config.embeddingSize; ++j)
+          gradEValues[gradEOffset + j] += regularizationWeight * e(i, j);
+      }
+      weightRegularization = regularizationWeight;
     }
 
     public double getCost() {
@@ -461,8 +1288,19 @@ public class Classifier  {
       return gradW2;
     }
 
+    /**
+     * @return A dense copy of the data and regularization gradient of
+     *         the embedding matrix
+     */
     public double[][] getGradE() {
-      return gradE;
+      double[][] dense = gradE.toDense();
+      for (int i = 0; i < dense.length; ++i) {
+        if (gradE.offset(i) < 0) {
+          for (int j = 0; j < dense[i].length; ++j)
+            dense[i][j] = embeddingRegularization * e(i, j);
+        }
+      }
+      return dense;
     }
 
   }
@@ -471,23 +1309,78 @@ public class Classifier  {
    * Determine the feature IDs which need to be pre-computed for
    * training with these examples.
    */
-  private Set<Integer> getToPreCompute(List<Example> examples) {
-    Set<Integer> featureIDs = new HashSet<>();
-    for (Example ex : examples) {
-      List<Integer> feature = ex.getFeature();
+  private int[] getToPreCompute(Dataset.Cursor examples) {
+    if (preComputeSeen == null)
+      preComputeSeen = new boolean[preMap.size()];
+    else
+      Arrays.fill(preComputeSeen, false);
 
+    int[] featureIDs = new int[preMap.size()];
+    int numFeatureIDs = 0;
+    while (examples.next()) {
       for (int j = 0; j < config.numTokens; j++) {
-        int tok = feature.get(j);
+        int tok = examples.feature(j);
         int index = tok * config.numTokens + j;
-        if (preMap.containsKey(index))
-          featureIDs.add(index);
+        int id = preMap.get(index);
+        if (id != IntIntMap.NONE && !preComputeSeen[id]) {
+          preComputeSeen[id] = true;
+          featureIDs[numFeatureIDs++] = index;
+        }
       }
     }
 
-    double percentagePreComputed = featureIDs.size() / (float) config.numPreComputed;
+    double percentagePreComputed = numFeatureIDs / (float) config.numPreComputed;
     System.err.printf("Percent actually necessary to pre-compute: %f%%%n", percentagePreComputed * 100);
 
-    return featureIDs;
+    return Arrays.copyOf(featureIDs, numFeatureIDs);
+  }
+
+  /**
+   * Draw a mini-batch of up to {@code batchSize} distinct examples into
+   * {@link #miniBatch}.
+   * <p>
+   * By default the mini-batch is shuffled into the front of
+   * {@link #exampleOrder} from all of it. With
+   * {@link Config#epochSampling} it is shuffled in behind the previous
+   * one from the examples not yet seen in the epoch. If these run out,
+   * the next epoch starts over the whole permutation, except that the
+   * examples just drawn, which are at its end, are left for later.
+   *
+   * @return Number of examples drawn
+   */
+  private int sampleExamples(int batchSize) {
+    if (exampleOrder == null)
+      exampleOrder = IntStream.range(0, dataset.n).toArray();
+    if (!config.epochSampling)
+      epochPosition = 0;
+
+    int n = exampleOrder.length;
+    int size = Math.min(batchSize, n);
+    if (miniBatch == null || miniBatch.length < size)
+      miniBatch = new int[size];
+
+    Random random = Util.getRandom();
+    int numDrawn = 0, numExcluded = 0;
+    while (numDrawn < size) {
+      if (epochPosition == n) {
+        epochPosition = 0;
+        numExcluded = numDrawn;
+      }
+      int end = Math.min(epochPosition + size - numDrawn, n);
+      for (int i = epochPosition; i < end; i++) {
+        int j = i + random.nextInt(n - numExcluded - i);
+        int tmp = exampleOrder[i];
+        exampleOrder[i] = exampleOrder[j];
+        exampleOrder[j] = tmp;
+      }
+      System.arraycopy(exampleOrder, epochPosition, miniBatch, numDrawn, end - epochPosition);
+      numDrawn += end - epochPosition;
+      epochPosition = end;
+    }
+
+    if (config.sortMiniBatches)
+      Arrays.sort(miniBatch, 0, size);
+    return size;
   }
 
   /**
@@ -511,41 +1404,96 @@ public class Classifier  {
    */
   public Cost computeCostFunction(int batchSize, double regParameter, double dropOutProb) {
     validateTraining();
+    if (jobHandler == null)
+      throw new IllegalStateException("Classifier is set up for Hogwild training; use trainHogwild");
 
-    List<Example> examples = Util.getRandomSubList(dataset.examples, batchSize);
+    int numExamples = sampleExamples(batchSize);
+    return computeCostFunction(dataset, miniBatch, numExamples, batchSize, regParameter, dropOutProb);
+  }
+
+  /**
+   * Determine the cost of the given mini-batch, such as one delivered
+   * by an {@link ExampleStream}, rather than of a sample of the
+   * classifier's own dataset.
+   *
+   * @see #computeCostFunction(int, double, double)
+   */
+  public Cost computeCostFunction(Dataset batch, double regParameter, double dropOutProb) {
+    validateTraining();
+    if (jobHandler == null)
+      throw new IllegalStateException("Classifier is set up for Hogwild training; use trainHogwild");
+
+    return computeCostFunction(batch, null, batch.n, batch.n, regParameter, dropOutProb);
+  }
+
+  /**
+   * @param order Indices of the mini-batch examples in {@code examples}
+   *              (the first {@code numExamples} entries), or
+   *              {@code null} to use examples {@code 0} to
+   *              {@code numExamples - 1}
+   */
+  private Cost computeCostFunction(Dataset examples, int[] order, int numExamples, int batchSize,
+                                   double regParameter, double dropOutProb) {
+    // Bring the embeddings this mini-batch reads up to date
+    if (regularizedUpTo != null) {
+      Dataset.Cursor cursor = cursor(examples, order, 0, numExamples);
+      while (cursor.next()) {
+        for (int j = 0; j < config.numTokens; ++j)
+          catchUp(cursor.feature(j));
+      }
+    }
 
     // Redo precomputations for only those features which are triggered
     // by examples in this mini-batch.
-    Set<Integer> toPreCompute = getToPreCompute(examples);
+    int[] toPreCompute = getToPreCompute(cursor(examples, order, 0, numExamples));
     preCompute(toPreCompute);
 
-    // Set up parameters for feedforward
-    FeedforwardParams params = new FeedforwardParams(batchSize, dropOutProb);
 
-    // Zero out saved-embedding gradients
-    gradSaved = new double[preMap.size()][config.hiddenSize];
+    if (config.gemmBackprop)
+      packWeights();
 
     int numChunks = config.trainingThreads;
-    List<List<Example>> chunks = CollectionUtils.partitionIntoFolds(examples, numChunks);
 
-    // Submit chunks for processing on separate threads
-    for (Collection<Example> chunk : chunks)
-      jobHandler.put(new Pair<>(chunk, params));
-    jobHandler.join(false);
+    if (chunkCosts == null) {
+      chunkCosts = new Cost[numChunks];
+      for (int i = 0; i < numChunks; ++i)
+        chunkCosts[i] = new Cost();
+    }
 
-    // Join costs from each chunk
-    Cost cost = null;
-    while (jobHandler.peek()) {
-      Cost otherCost = jobHandler.poll();
+    // Zero out saved-embedding gradients. Only the rows of features in
+    // this mini-batch are written or read, so only those are cleared.
+    for (Cost chunkCost : chunkCosts) {
+      if (chunkCost.gradSaved == null)
+        chunkCost.gradSaved = new double[preMap.size()][config.hiddenSize];
+      for (int x : toPreCompute)
+        Arrays.fill(chunkCost.gradSaved[preMap.get(x)], 0.0);
+    }
 
-      if (cost == null)
-        cost = otherCost;
-      else
-        cost.merge(otherCost);
+    // Submit chunks for processing on separate threads, each with its
+    // own gradient buffers. As with CollectionUtils.partitionIntoFolds,
+    // the first (numExamples % numChunks) chunks take one extra example.
+    // The dropout seed is drawn only when needed, so that training
+    // without dropout consumes the same random numbers as before.
+    long dropOutSeed = dropOutProb > 0.0 ? Util.getRandom().nextLong() : 0L;
+    int from = 0;
+    for (int i = 0; i < numChunks; ++i) {
+      int to = from + numExamples / numChunks + (i < numExamples % numChunks ? 1 : 0);
+      jobHandler.put(new FeedforwardParams(batchSize, dropOutProb, dropOutSeed, from,
+          cursor(examples, order, from, to), chunkCosts[i]));
+      from = to;
     }
+    jobHandler.join(false);
 
-    if (cost == null)
-      return null;
+    // Join costs from each chunk. They are merged in chunk order
+    // rather than in the order the chunks finished, so that the sums
+    // do not depend on thread scheduling.
+    while (jobHandler.peek())
+      jobHandler.poll();
+    Cost cost = chunkCosts[0];
+    for (int i = 1; i < numChunks; ++i) {
+      cost.merge(chunkCosts[i]);
+      cost.mergeSaved(chunkCosts[i], toPreCompute);
+    }
 
     // Backpropagate gradients on saved pre-computed values to actual
     // embeddings
@@ -556,6 +1504,159 @@ public class Classifier  {
     return cost;
   }
 
+  /**
+   * Refresh {@link #packedW1} and {@link #packedW2} from the weights.
+   */
+  private void packWeights() {
+    int w1Cols = config.embeddingSize * config.numTokens;
+    if (packedW1 == null) {
+      packedW1 = new double[config.hiddenSize * w1Cols];
+      packedW2 = new double[numLabels * config.hiddenSize];
+    }
+    if (W1 != null) {
+      for (int i = 0; i < config.hiddenSize; ++i)
+        System.arraycopy(W1[i], 0, packedW1, i * w1Cols, w1Cols);
+      for (int i = 0; i < numLabels; ++i)
+        System.arraycopy(W2[i], 0, packedW2, i * config.hiddenSize, config.hiddenSize);
+    } else {
+      for (int i = 0; i < packedW1.length; ++i)
+        packedW1[i] = floatW1[i];
+      for (int i = 0; i < packedW2.length; ++i)
+        packedW2[i] = floatW2[i];
+    }
+  }
+
+  private static Dataset.Cursor cursor(Dataset examples, int[] order, int from, int to) {
+    return order == null ? examples.cursor(from, to) : examples.cursor(order, from, to);
+  }
+
+  /**
+   * Run one Hogwild training iteration (see {@link Config#hogwild}):
+   * {@code batchSize} examples, sampled with replacement and split
+   * evenly among the training threads, each of which updates the
+   * shared weights as it goes.
+   *
+   * @return Average cost and accuracy over the iteration. Unlike the
+   *         result of {@link #computeCostFunction(int, double, double)}
+   *         this carries no gradients, and the cost leaves out the L2
+   *         term.
+   * @throws java.lang.IllegalStateException If not training in Hogwild
+   *         mode
+   */
+  public Cost trainHogwild(int batchSize, double regParameter, double dropOutProb, double adaAlpha,
+                           double adaEps) {
+    return trainHogwild(dataset, batchSize, regParameter, dropOutProb, adaAlpha, adaEps);
+  }
+
+  /**
+   * Run one Hogwild training iteration over {@code batch.n} examples
+   * sampled from the given mini-batch, such as one delivered by an
+   * {@link ExampleStream}.
+   *
+   * @see #trainHogwild(int, double, double, double, double)
+   */
+  public Cost trainHogwild(Dataset batch, double regParameter, double dropOutProb, double adaAlpha,
+                           double adaEps) {
+    return trainHogwild(batch, batch.n, regParameter, dropOutProb, adaAlpha, adaEps);
+  }
+
+  private Cost trainHogwild(Dataset examples, int batchSize, double regParameter, double dropOutProb,
+                            double adaAlpha, double adaEps) {
+    validateTraining();
+    if (hogwildHandler == null)
+      throw new IllegalStateException("Classifier is not set up for Hogwild training");
+
+    int numThreads = config.trainingThreads;
+    for (int t = 0; t < numThreads; ++t) {
+      int numExamples = batchSize / numThreads + (t < batchSize % numThreads ? 1 : 0);
+      hogwildHandler.put(new HogwildParams(examples, numExamples, Util.getRandom().nextLong(), dropOutProb,
+          regParameter, adaAlpha, adaEps));
+    }
+    hogwildHandler.join(false);
+
+    // The workers may have changed any weight
+    for (int pos = 0; pos < config.numTokens; ++pos)
+      markW1Changed(pos);
+
+    double cost = 0.0;
+    double correct = 0.0;
+    while (hogwildHandler.peek()) {
+      Cost workerCost = hogwildHandler.poll();
+      cost += workerCost.cost;
+      correct += workerCost.percentCorrect;
+    }
+    return new Cost(cost / batchSize, correct / batchSize);
+  }
+
+  /**
+   * Apply one Hogwild worker's AdaGrad update, with L2 regularization,
+   * to the shared weights, and reset the worker's gradients to zero.
+   * Only the weights that received gradient are updated (and
+   * regularized): the rows of W1 and entries of b1 and W2 of the
+   * hidden units that some example left active, and the rows of E
+   * that the mini-batch touched.
+   *
+   * @param unitActive Whether some example of the mini-batch left each
+   *                   hidden unit active
+   */
+  private void applyHogwildUpdate(Cost cost, boolean[] unitActive, HogwildParams params) {
+    double reg = params.regParameter;
+    double adaAlpha = params.adaAlpha;
+    double adaEps = params.adaEps;
+
+    double[][] gradW1 = cost.gradW1, gradW2 = cost.gradW2;
+    double[] gradb1 = cost.gradb1;
+    for (int i = 0; i < b1.length; ++i) {
+      // Units dropped from every example have no gradient at all
+      if (!unitActive[i])
+        continue;
+
+      for (int j = 0; j < eg2W1[i].length; ++j) {
+        if (gradW1[i][j] == 0.0)
+          continue;
+        double w = w1(i, j);
+        double g = gradW1[i][j] + reg * w;
+        eg2W1[i][j] += g * g;
+        setW1(i, j, w - adaAlpha * g / Math.sqrt(eg2W1[i][j] + adaEps));
+        gradW1[i][j] = 0.0;
+      }
+
+      double g = gradb1[i] + reg * b1[i];
+      eg2b1[i] += g * g;
+      b1[i] -= adaAlpha * g / Math.sqrt(eg2b1[i] + adaEps);
+      gradb1[i] = 0.0;
+
+      for (int l = 0; l < eg2W2.length; ++l) {
+        if (gradW2[l][i] == 0.0)
+          continue;
+        double w = w2(l, i);
+        g = gradW2[l][i] + reg * w;
+        eg2W2[l][i] += g * g;
+        setW2(l, i, w - adaAlpha * g / Math.sqrt(eg2W2[l][i] + adaEps));
+        gradW2[l][i] = 0.0;
+      }
+    }
+
+    SparseRowMatrix gradE = cost.gradE;
+    if (config.doWordEmbeddingGradUpdate) {
+      double[] gradEValues = gradE.values();
+      for (int k = 0; k < gradE.numTouched(); ++k) {
+        int i = gradE.touchedRow(k);
+        int gradEOffset = gradE.offset(i);
+        for (int j = 0; j < eg2E[i].length; ++j) {
+          double e = e(i, j);
+          double g = gradEValues[gradEOffset + j] + reg * e;
+          eg2E[i][j] += g * g;
+          setE(i, j, e - adaAlpha * g / Math.sqrt(eg2E[i][j] + adaEps));
+        }
+      }
+    }
+    gradE.clear();
+
+    cost.cost = 0.0;
+    cost.percentCorrect = 0.0;
+  }
+
   /**
    * Update classifier weights using the given training cost
    * information.
@@ -569,44 +1670,158 @@ public class Classifier  {
   public void takeAdaGradientStep(Cost cost, double adaAlpha, double adaEps) {
     validateTraining();
 
-    double[][] gradW1 = cost.getGradW1(), gradW2 = cost.getGradW2(),
-        gradE = cost.getGradE();
+    double[][] gradW1 = cost.getGradW1(), gradW2 = cost.getGradW2();
     double[] gradb1 = cost.getGradb1();
 
-    for (int i = 0; i < W1.length; ++i) {
-      for (int j = 0; j < W1[i].length; ++j) {
-        eg2W1[i][j] += gradW1[i][j] * gradW1[i][j];
-        W1[i][j] -= adaAlpha * gradW1[i][j] / Math.sqrt(eg2W1[i][j] + adaEps);
+    // Pending L2 gradient (lazy mode only), and the sum of squares of
+    // the updated weights for the next cost report
+    double reg = cost.weightRegularization;
+    double squares = 0.0;
+
+    int embeddingSize = config.embeddingSize;
+    for (int i = 0; i < gradW1.length; ++i) {
+      for (int pos = 0; pos < config.numTokens; ++pos) {
+        boolean changed = false;
+        for (int j = pos * embeddingSize; j < (pos + 1) * embeddingSize; ++j) {
+          double w = w1(i, j);
+          double g = gradW1[i][j] + reg * w;
+          changed |= g != 0.0;
+          eg2W1[i][j] += g * g;
+          w = setW1(i, j, w - adaAlpha * g / Math.sqrt(eg2W1[i][j] + adaEps));
+          squares += w * w;
+        }
+        if (changed)
+          markW1Changed(pos);
       }
     }
 
     for (int i = 0; i < b1.length; ++i) {
-      eg2b1[i] += gradb1[i] * gradb1[i];
-      b1[i] -= adaAlpha * gradb1[i] / Math.sqrt(eg2b1[i] + adaEps);
+      double g = gradb1[i] + reg * b1[i];
+      eg2b1[i] += g * g;
+      b1[i] -= adaAlpha * g / Math.sqrt(eg2b1[i] + adaEps);
+      squares += b1[i] * b1[i];
     }
 
-    for (int i = 0; i < W2.length; ++i) {
-      for (int j = 0; j < W2[i].length; ++j) {
-        eg2W2[i][j] += gradW2[i][j] * gradW2[i][j];
-        W2[i][j] -= adaAlpha * gradW2[i][j] / Math.sqrt(eg2W2[i][j] + adaEps);
+    for (int i = 0; i < gradW2.length; ++i) {
+      for (int j = 0; j < gradW2[i].length; ++j) {
+        double w = w2(i, j);
+        double g = gradW2[i][j] + reg * w;
+        eg2W2[i][j] += g * g;
+        w = setW2(i, j, w - adaAlpha * g / Math.sqrt(eg2W2[i][j] + adaEps));
+        squares += w * w;
       }
     }
+    squaresW = squares;
 
     if (config.doWordEmbeddingGradUpdate) {
-      for (int i = 0; i < E.length; ++i) {
-        for (int j = 0; j < E[i].length; ++j) {
-          eg2E[i][j] += gradE[i][j] * gradE[i][j];
-          E[i][j] -= adaAlpha * gradE[i][j] / Math.sqrt(eg2E[i][j] + adaEps);
+      SparseRowMatrix gradE = cost.gradE;
+      double[] gradEValues = gradE.values();
+
+      if (cost.embeddingRegularization == 0.0) {
+        // Untouched rows have a zero gradient (or, in lazy mode, a
+        // pending one) and stay as they are
+        for (int k = 0; k < gradE.numTouched(); ++k) {
+          int i = gradE.touchedRow(k);
+          int gradEOffset = gradE.offset(i);
+          double before = 0.0, after = 0.0;
+          for (int j = 0; j < embeddingSize; ++j) {
+            double g = gradEValues[gradEOffset + j];
+            double e = e(i, j);
+            before += e * e;
+            eg2E[i][j] += g * g;
+            e = setE(i, j, e - adaAlpha * g / Math.sqrt(eg2E[i][j] + adaEps));
+            after += e * e;
+          }
+          squaresE += after - before;
+          if (regularizedUpTo != null)
+            regularizedUpTo[i] = numSteps + 1;
+          markEChanged(i);
+        }
+      } else {
+        double embeddingReg = cost.embeddingRegularization;
+        for (int i = 0; i < eg2E.length; ++i) {
+          int gradEOffset = gradE.offset(i);
+          for (int j = 0; j < embeddingSize; ++j) {
+            double e = e(i, j);
+            double g = gradEOffset >= 0 ? gradEValues[gradEOffset + j] : embeddingReg * e;
+            eg2E[i][j] += g * g;
+            setE(i, j, e - adaAlpha * g / Math.sqrt(eg2E[i][j] + adaEps));
+          }
+          markEChanged(i);
         }
       }
     }
+
+    numSteps++;
+    lastRegParameter = reg;
+    lastAdaAlpha = adaAlpha;
+    lastAdaEps = adaEps;
+  }
+
+  /**
+   * Apply to row {@code i} of E the L2 decay of the AdaGrad steps it
+   * sat out under lazy regularization. Each skipped step would have
+   * taken the gradient {@code lambda * E[i][j]}; the steps are folded
+   * into one multiplicative decay, treating the AdaGrad history as
+   * constant over the skipped span.
+   */
+  private void catchUp(int i) {
+    int skipped = numSteps - regularizedUpTo[i];
+    if (skipped == 0)
+      return;
+    regularizedUpTo[i] = numSteps;
+    if (lastRegParameter == 0.0)
+      return;
+
+    double[] eg2 = eg2E[i];
+    double before = 0.0, after = 0.0;
+    for (int j = 0; j < eg2.length; ++j) {
+      double e = e(i, j);
+      double g = lastRegParameter * e;
+      before += e * e;
+      eg2[j] += skipped * g * g;
+      e = setE(i, j, e * Math.pow(1.0 - lastAdaAlpha * lastRegParameter / Math.sqrt(eg2[j] + lastAdaEps), skipped));
+      after += e * e;
+    }
+    squaresE += after - before;
+    markEChanged(i);
+  }
+
+  /**
+   * Bring every row of E up to date under lazy regularization.
+   */
+  private void catchUpAll() {
+    if (regularizedUpTo == null)
+      return;
+    for (int i = 0; i < regularizedUpTo.length; ++i)
+      catchUp(i);
+  }
+
+  private static double sumOfSquares(double[][] a) {
+    double sum = 0.0;
+    for (double[] row : a)
+      for (double x : row)
+        sum += x * x;
+    return sum;
+  }
+
+  private static double sumOfSquares(float[] a) {
+    double sum = 0.0;
+    for (float x : a)
+      sum += (double) x * x;
+    return sum;
+  }
+
+  private static void zero(double[][] a) {
+    for (double[] row : a)
+      Arrays.fill(row, 0.0);
   }
 
   private void initGradientHistories() {
-    eg2E = new double[E.length][E[0].length];
-    eg2W1 = new double[W1.length][W1[0].length];
+    eg2E = new double[numEmbeddings()][config.embeddingSize];
+    eg2W1 = new double[config.hiddenSize][config.embeddingSize * config.numTokens];
     eg2b1 = new double[b1.length];
-    eg2W2 = new double[W2.length][W2[0].length];
+    eg2W2 = new double[numLabels][config.hiddenSize];
   }
 
   /**
@@ -616,6 +1831,8 @@ public class Classifier  {
    */
   public void clearGradientHistories() {
     validateTraining();
+    // Pending decay is computed from the histories about to be cleared
+    catchUpAll();
     initGradientHistories();
   }
 
@@ -631,26 +1848,336 @@ public class Classifier  {
     validateTraining();
 
     // Destroy threadpool
-    jobHandler.join(true);
+    if (jobHandler != null)
+      jobHandler.join(true);
+    if (hogwildHandler != null)
+      hogwildHandler.join(true);
+    if (preComputeHandler != null)
+      preComputeHandler.join(true);
+
+    catchUpAll();
+    regularizedUpTo = null;
 
     isTraining = false;
   }
 
   /**
-   * @see #preCompute(java.util.Set)
+   * @return A cleared cost, into which a parameter server reads the
+   *         gradients of its workers
+   */
+  Cost newCost() {
+    return new Cost();
+  }
+
+  /**
+   * Draw the next mini-batch of a parameter-server worker from this
+   * classifier's examples (the worker's shard), to be followed by
+   * {@link #computeRemoteCost(int, double)} once the weights it reads
+   * have been received.
+   *
+   * @return Rows of E read by the mini-batch, in increasing order
+   */
+  int[] sampleRemoteBatch(int numExamples) {
+    validateTraining();
+    numRemoteExamples = sampleExamples(numExamples);
+
+    boolean[] used = new boolean[numEmbeddings()];
+    int numUsed = 0;
+    Dataset.Cursor cursor = dataset.cursor(miniBatch, 0, numRemoteExamples);
+    while (cursor.next()) {
+      for (int j = 0; j < config.numTokens; ++j) {
+        int tok = cursor.feature(j);
+        if (!used[tok]) {
+          used[tok] = true;
+          numUsed++;
+        }
+      }
+    }
+
+    int[] rows = new int[numUsed];
+    for (int i = 0, k = 0; k < numUsed; ++i)
+      if (used[i])
+        rows[k++] = i;
+    return rows;
+  }
+
+  /**
+   * Compute the cost and gradients of the mini-batch drawn by
+   * {@link #sampleRemoteBatch(int)}, without regularization, which the
+   * parameter server adds.
+   *
+   * @param batchSize Number of examples each gradient is averaged
+   *                  over, which is more than this worker's share when
+   *                  the server sums the gradients of all workers
+   */
+  Cost computeRemoteCost(int batchSize, double dropOutProb) {
+    validateTraining();
+    return computeCostFunction(dataset, miniBatch, numRemoteExamples, batchSize, 0.0, dropOutProb);
+  }
+
+  /**
+   * Send W1, b1 and W2 to a parameter-server worker. They are followed
+   * by {@link #writeEmbeddings(DataOutputStream, int[])} and received
+   * by {@link #readWeights(DataInputStream)}.
+   */
+  void writeDenseWeights(DataOutputStream out) throws IOException {
+    for (int i = 0; i < config.hiddenSize; ++i)
+      for (int j = 0; j < config.embeddingSize * config.numTokens; ++j)
+        out.writeDouble(w1(i, j));
+    for (double b : b1)
+      out.writeDouble(b);
+    for (int i = 0; i < numLabels; ++i)
+      for (int j = 0; j < config.hiddenSize; ++j)
+        out.writeDouble(w2(i, j));
+  }
+
+  /**
+   * Send the given rows of E to a parameter-server worker, brought up
+   * to date first under lazy regularization.
+   */
+  void writeEmbeddings(DataOutputStream out, int[] rows) throws IOException {
+    out.writeInt(rows.length);
+    for (int i : rows) {
+      if (regularizedUpTo != null)
+        catchUp(i);
+      out.writeInt(i);
+      for (int j = 0; j < config.embeddingSize; ++j)
+        out.writeDouble(e(i, j));
+    }
+  }
+
+  /**
+   * Replace W1, b1, W2 and some rows of E with those sent by a
+   * parameter server.
+   */
+  void readWeights(DataInputStream in) throws IOException {
+    for (int i = 0; i < config.hiddenSize; ++i)
+      for (int j = 0; j < config.embeddingSize * config.numTokens; ++j)
+        setW1(i, j, in.readDouble());
+    for (int pos = 0; pos < config.numTokens; ++pos)
+      markW1Changed(pos);
+    for (int i = 0; i < b1.length; ++i)
+      b1[i] = in.readDouble();
+    for (int i = 0; i < numLabels; ++i)
+      for (int j = 0; j < config.hiddenSize; ++j)
+        setW2(i, j, in.readDouble());
+
+    int numRows = in.readInt();
+    for (int k = 0; k < numRows; ++k) {
+      int i = in.readInt();
+      for (int j = 0; j < config.embeddingSize; ++j)
+        setE(i, j, in.readDouble());
+      markEChanged(i);
+    }
+  }
+
+  /**
+   * Copy the current weights into a new, inference-only classifier,
+   * which later training steps leave untouched. The copy scores like
+   * this classifier (double-precision weights, eagerly pre-computed
+   * activations) once its {@link #preCompute()} has run, and can be
+   * used on another thread while training continues.
+   *
+   * @throws java.lang.IllegalStateException If not training
+   */
+  Classifier snapshot() {
+    validateTraining();
+    catchUpAll();
+
+    Integer[] preComputed = new Integer[preMap.size()];
+    for (int x : preMap.keys())
+      preComputed[preMap.get(x)] = x;
+    return new Classifier(config, null, copyOfE(), copyOfW1(), b1.clone(), copyOfW2(), Arrays.asList(preComputed),
+        true);
+  }
+
+  /**
+   * Everything that determines how training continues from here: the
+   * weights, AdaGrad histories, example order and lazy regularization
+   * bookkeeping. Arrays are copies, so the state can be written out on
+   * another thread while training continues.
+   *
+   * @see Checkpoint
+   */
+  static final class TrainingState {
+
+    final double[][] E, W1, W2;
+    final double[] b1;
+    final double[][] eg2E, eg2W1, eg2W2;
+    final double[] eg2b1;
+
+    /** {@code null} if no mini-batch was drawn from the dataset yet */
+    final int[] exampleOrder;
+    final int epochPosition;
+    /** {@code null} unless E is regularized lazily */
+    final int[] regularizedUpTo;
+    final int numSteps;
+    final double lastRegParameter, lastAdaAlpha, lastAdaEps;
+    final double squaresW, squaresE;
+
+    TrainingState(double[][] E, double[][] W1, double[] b1, double[][] W2, double[][] eg2E, double[][] eg2W1,
+                  double[] eg2b1, double[][] eg2W2, int[] exampleOrder, int epochPosition, int[] regularizedUpTo,
+                  int numSteps, double lastRegParameter, double lastAdaAlpha, double lastAdaEps, double squaresW,
+                  double squaresE) {
+      this.E = E;
+      this.W1 = W1;
+      this.b1 = b1;
+      this.W2 = W2;
+      this.eg2E = eg2E;
+      this.eg2W1 = eg2W1;
+      this.eg2b1 = eg2b1;
+      this.eg2W2 = eg2W2;
+      this.exampleOrder = exampleOrder;
+      this.epochPosition = epochPosition;
+      this.regularizedUpTo = regularizedUpTo;
+      this.numSteps = numSteps;
+      this.lastRegParameter = lastRegParameter;
+      this.lastAdaAlpha = lastAdaAlpha;
+      this.lastAdaEps = lastAdaEps;
+      this.squaresW = squaresW;
+      this.squaresE = squaresE;
+    }
+
+  }
+
+  /**
+   * Copy the training state. Unlike {@link #snapshot()}, this leaves
+   * lazy regularization pending, so that training resumed from the
+   * copy takes exactly the same steps.
+   *
+   * @throws java.lang.IllegalStateException If not training
+   */
+  TrainingState trainingState() {
+    validateTraining();
+    return new TrainingState(copyOfE(), copyOfW1(), b1.clone(), copyOfW2(), copyOf(eg2E), copyOf(eg2W1),
+        eg2b1.clone(), copyOf(eg2W2), exampleOrder == null ? null : exampleOrder.clone(), epochPosition,
+        regularizedUpTo == null ? null : regularizedUpTo.clone(), numSteps, lastRegParameter, lastAdaAlpha,
+        lastAdaEps, squaresW, squaresE);
+  }
+
+  /**
+   * Continue training from {@code state}, whose weights this
+   * classifier must have been constructed with (or, with
+   * {@link Config#mixedPrecision}, with single-precision copies of).
+   * The classifier takes over the state's arrays.
+   *
+   * @throws java.lang.IllegalArgumentException If the state does not
+   *         fit this classifier's configuration or dataset
+   */
+  void restoreTrainingState(TrainingState state) {
+    validateTraining();
+    if (E != null && (state.E != E || state.W1 != W1 || state.W2 != W2) || state.b1 != b1)
+      throw new IllegalArgumentException("Classifier was not constructed with the state's weights");
+    if (state.exampleOrder != null && state.exampleOrder.length != dataset.n)
+      throw new IllegalArgumentException("State has " + state.exampleOrder.length + " training examples, dataset has "
+          + dataset.n);
+    if (state.epochPosition < 0 || state.epochPosition > (state.exampleOrder == null ? 0 : dataset.n))
+      throw new IllegalArgumentException("State has epoch position " + state.epochPosition + " out of range");
+    if ((state.regularizedUpTo != null) != (regularizedUpTo != null))
+      throw new IllegalArgumentException("State and configuration disagree on lazy regularization");
+
+    eg2E = state.eg2E;
+    eg2W1 = state.eg2W1;
+    eg2b1 = state.eg2b1;
+    eg2W2 = state.eg2W2;
+    exampleOrder = state.exampleOrder;
+    epochPosition = state.epochPosition;
+    regularizedUpTo = state.regularizedUpTo;
+    numSteps = state.numSteps;
+    lastRegParameter = state.lastRegParameter;
+    lastAdaAlpha = state.lastAdaAlpha;
+    lastAdaEps = state.lastAdaEps;
+    squaresW = state.squaresW;
+    squaresE = state.squaresE;
+  }
+
+  /**
+   * Weight copies in double precision, whichever precision the weights
+   * are kept in.
+   */
+  private double[][] copyOfE() {
+    return E != null ? copyOf(E) : toMatrix(floatE, numEmbeddings());
+  }
+
+  private double[][] copyOfW1() {
+    return W1 != null ? copyOf(W1) : toMatrix(floatW1, config.hiddenSize);
+  }
+
+  private double[][] copyOfW2() {
+    return W2 != null ? copyOf(W2) : toMatrix(floatW2, numLabels);
+  }
+
+  /**
+   * Element accessors for the weight matrices, whether they are kept
+   * in double or (see {@link #floatE}) single precision. Setters round
+   * to the storage precision and return the value stored.
+   */
+  private double e(int i, int j) {
+    return E != null ? E[i][j] : floatE[i * config.embeddingSize + j];
+  }
+
+  private double setE(int i, int j, double value) {
+    if (E != null)
+      return E[i][j] = value;
+    return floatE[i * config.embeddingSize + j] = (float) value;
+  }
+
+  private double w1(int i, int j) {
+    return W1 != null ? W1[i][j] : floatW1[i * config.embeddingSize * config.numTokens + j];
+  }
+
+  private double setW1(int i, int j, double value) {
+    if (W1 != null)
+      return W1[i][j] = value;
+    return floatW1[i * config.embeddingSize * config.numTokens + j] = (float) value;
+  }
+
+  private double w2(int i, int j) {
+    return W2 != null ? W2[i][j] : floatW2[i * config.hiddenSize + j];
+  }
+
+  private double setW2(int i, int j, double value) {
+    if (W2 != null)
+      return W2[i][j] = value;
+    return floatW2[i * config.hiddenSize + j] = (float) value;
+  }
+
+  /**
+   * @return Number of rows of E
+   */
+  private int numEmbeddings() {
+    return E != null ? E.length : floatE.length / config.embeddingSize;
+  }
+
+  private static double[][] copyOf(double[][] a) {
+    double[][] copy = new double[a.length][];
+    for (int i = 0; i < a.length; ++i)
+      copy[i] = a[i].clone();
+    return copy;
+  }
+
+  /**
+   * @see #preCompute(int[])
    */
   public void preCompute() {
-    preCompute(preMap.keySet());
+    // All rows may be read from here on, e.g. by an evaluation
+    catchUpAll();
+    preCompute(preMap.keys());
   }
 
   /**
    * Pre-compute hidden layer activations for some set of possible
    * feature inputs.
    *
-   * @param toPreCompute Set of feature IDs for which hidden layer
+   * The activations are kept between calls, and only those whose E row
+   * or W1 columns changed since they were last computed (see
+   * {@link #weightsVersion}) are recomputed, on the training threads
+   * if there are many.
+   *
+   * @param toPreCompute Distinct feature IDs for which hidden layer
    *                     activations should be precomputed
    */
-  public void preCompute(Set<Integer> toPreCompute) {
+  public void preCompute(int[] toPreCompute) {
     long startTime = System.currentTimeMillis();
 
     // NB: It'd make sense to just make the first dimension of this
@@ -658,63 +2185,387 @@ public class Classifier  {
     // `preMap` indices to map into this denser array. But this
     // actually hurt training performance! (See experiments with
     // "smallMap.")
-    saved = new double[preMap.size()][config.hiddenSize];
+    if (savedAt == null) {
+      if (config.floatWeights || floatE != null)
+        savedFloat = new float[preMap.size() * config.hiddenSize];
+      else
+        saved = new double[preMap.size()][config.hiddenSize];
+      savedAt = new long[preMap.size()];
+      eChangedAt = new long[numEmbeddings()];
+      w1ChangedAt = new long[config.numTokens];
+      staleFeatures = new int[preMap.size()];
+    }
 
+    numStale = 0;
     for (int x : toPreCompute) {
+      long computedAt = savedAt[preMap.get(x)];
+      if (computedAt <= eChangedAt[x / config.numTokens] || computedAt <= w1ChangedAt[x % config.numTokens])
+        staleFeatures[numStale++] = x;
+    }
+
+    // The thread pool is gone once training is finalized
+    if (preComputeHandler != null && isTraining && numStale >= PARALLEL_PRECOMPUTE_MIN_ROWS) {
+      numStaleChunks = config.trainingThreads;
+      for (int chunk = 0; chunk < numStaleChunks; ++chunk)
+        preComputeHandler.put(chunk);
+      preComputeHandler.join(false);
+      while (preComputeHandler.peek())
+        preComputeHandler.poll();
+    } else {
+      preComputeRows(0, numStale);
+    }
+
+    long version = ++weightsVersion;
+    for (int k = 0; k < numStale; ++k)
+      savedAt[preMap.get(staleFeatures[k])] = version;
+
+    log.info("PreComputed " + numStale + " of " + toPreCompute.length + ", Elapsed Time: " + (System
+        .currentTimeMillis() - startTime) / 1000.0 + " (s)");
+  }
+
+  /**
+   * Recomputes one chunk of {@link #staleFeatures}.
+   */
+  private class PreComputeFunction implements ThreadsafeProcessor<Integer, Integer> {
+
+    @Override
+    public Integer process(Integer chunk) {
+      preComputeRows((int) ((long) numStale * chunk / numStaleChunks),
+          (int) ((long) numStale * (chunk + 1) / numStaleChunks));
+      return chunk;
+    }
+
+    @Override
+    public ThreadsafeProcessor<Integer, Integer> newInstance() {
+      return new PreComputeFunction();
+    }
+  }
+
+  /**
+   * Compute the saved rows of {@code staleFeatures[from]} through
+   * {@code staleFeatures[to - 1]}. When {@link Config#floatWeights} is
+   * set, each entry is accumulated in double precision and rounded
+   * once on store.
+   */
+  private void preComputeRows(int from, int to) {
+    int hiddenSize = config.hiddenSize;
+    int embeddingSize = config.embeddingSize;
+    int w1Cols = embeddingSize * config.numTokens;
+
+    for (int k = from; k < to; ++k) {
+      int x = staleFeatures[k];
       int mapX = preMap.get(x);
       int tok = x / config.numTokens;
-      int pos = x % config.numTokens;
-      for (int j = 0; j < config.hiddenSize; ++j)
-        for (int k = 0; k < config.embeddingSize; ++k)
-          saved[mapX][j] += W1[j][pos * config.embeddingSize + k] * E[tok][k];
+      int offset = (x % config.numTokens) * embeddingSize;
+      if (savedFloat != null) {
+        int base = mapX * hiddenSize;
+        for (int j = 0; j < hiddenSize; ++j) {
+          double sum = floatW1 != null
+              ? kernels.dot(floatW1, j * w1Cols + offset, floatE, tok * embeddingSize, embeddingSize)
+              : kernels.dot(W1[j], offset, E[tok], 0, embeddingSize);
+          savedFloat[base + j] = (float) sum;
+        }
+      } else {
+        for (int j = 0; j < hiddenSize; ++j)
+          saved[mapX][j] = kernels.dot(W1[j], offset, E[tok], 0, embeddingSize);
+      }
     }
-    log.info("PreComputed " + toPreCompute.size() + ", Elapsed Time: " + (System
-        .currentTimeMillis() - startTime) / 1000.0 + " (s)");
   }
 
-  double[] computeScores(int[] feature) {
-    return computeScores(feature, preMap);
+  /**
+   * Record that row {@code tok} of E has changed.
+   */
+  private void markEChanged(int tok) {
+    if (eChangedAt != null)
+      eChangedAt[tok] = ++weightsVersion;
+  }
+
+  /**
+   * Record that the W1 columns of feature position {@code pos} have
+   * changed.
+   */
+  private void markW1Changed(int pos) {
+    if (w1ChangedAt != null)
+      w1ChangedAt[pos] = ++weightsVersion;
   }
 
   /**
    * Feed a feature vector forward through the network. Returns the
    * values of the output layer.
    */
-  private double[] computeScores(int[] feature, Map<Integer, Integer> preMap) {
+  double[] computeScores(int[] feature) {
+    if (quantized != null)
+      return quantized.computeScores(feature);
+
     double[] hidden = new double[config.hiddenSize];
+    computeHidden(feature, hidden);
+
+    double[] scores = new double[numLabels];
+    for (int i = 0; i < numLabels; ++i)
+      scores[i] = dotW2(i, hidden);
+    return scores;
+  }
+
+  /**
+   * Feed the feature vectors of the first {@code numRows} active
+   * configurations of a workspace forward through the network. For
+   * each row {@code r}, store in {@code best[r]} the highest-scoring
+   * transition among those marked in {@code legal[r]}, or -1 if none
+   * is legal. Ties go to the lowest index.
+   *
+   * Hidden-layer activations are gathered for all rows first. The
+   * output layer is then evaluated as a matrix-matrix product, blocked
+   * so that a tile of hidden rows and a tile of {@code W2} rows stay in
+   * cache while they are multiplied; only the entries of legal
+   * transitions are computed.
+   */
+  void argmaxScores(ParserWorkspace workspace, int numRows) {
+    if (quantized != null) {
+      quantized.argmaxScores(workspace, numRows);
+      return;
+    }
+
+    double[][] hidden = workspace.hidden;
+    for (int r = 0; r < numRows; ++r) {
+      Arrays.fill(hidden[r], 0.0);
+      computeHidden(workspace.features[r], hidden[r]);
+    }
+
+    boolean[][] legal = workspace.legal;
+    int[] best = workspace.best;
+    double[] bestScore = workspace.bestScore;
+    Arrays.fill(best, 0, numRows, -1);
+    Arrays.fill(bestScore, 0, numRows, Double.NEGATIVE_INFINITY);
+    for (int r0 = 0; r0 < numRows; r0 += SCORE_BLOCK) {
+      int r1 = Math.min(r0 + SCORE_BLOCK, numRows);
+      for (int l0 = 0; l0 < numLabels; l0 += SCORE_BLOCK) {
+        int l1 = Math.min(l0 + SCORE_BLOCK, numLabels);
+        for (int r = r0; r < r1; ++r) {
+          for (int l = l0; l < l1; ++l) {
+            if (!legal[r][l])
+              continue;
+            double score = dotW2(l, hidden[r]);
+            if (score > bestScore[r]) {
+              bestScore[r] = score;
+              best[r] = l;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Tile edge used by the blocked output-layer products of
+   * {@link #argmaxScores} and {@link QuantizedScorer#argmaxScores}.
+   */
+  static final int SCORE_BLOCK = 16;
+
+  /**
+   * Compute hidden-layer unit activations (after the cube
+   * nonlinearity) for the given feature vector, writing them into
+   * {@code hidden}, which must be zeroed.
+   */
+  private void computeHidden(int[] feature, double[] hidden) {
+    int hiddenSize = config.hiddenSize;
+    int embeddingSize = config.embeddingSize;
+    int w1Cols = embeddingSize * config.numTokens;
+
     int offset = 0;
     for (int j = 0; j < feature.length; ++j) {
       int tok = feature[j];
       // j is the index in the feature array
-      // #token is the 
       int index = tok * config.numTokens + j;
 
-      if (preMap.containsKey(index)) {
-        int id = preMap.get(index);
-        for (int i = 0; i < config.hiddenSize; ++i)
-          hidden[i] += saved[id][i];
+      if (dense != null) {
+        int r = tok - denseFirstTok[j];
+        if (r >= 0 && r < denseNumToks[j]) {
+          kernels.add(dense, (denseBase[j] + r) * hiddenSize, hidden, 0, hiddenSize);
+          offset += embeddingSize;
+          continue;
+        }
+      }
+
+      if (preComputeCache != null) {
+        kernels.add(cachedContribution(index), 0, hidden, 0, hiddenSize);
+        offset += embeddingSize;
+        continue;
+      }
+
+      int id = preMap.get(index);
+      if (id != IntIntMap.NONE) {
+        if (savedFloat != null)
+          kernels.add(savedFloat, id * hiddenSize, hidden, 0, hiddenSize);
+        else
+          kernels.add(saved[id], 0, hidden, 0, hiddenSize);
+      } else if (floatW1 != null) {
+        int eBase = tok * embeddingSize;
+        for (int i = 0; i < hiddenSize; ++i)
+          hidden[i] += kernels.dot(floatW1, i * w1Cols + offset, floatE, eBase, embeddingSize);
       } else {
-        for (int i = 0; i < config.hiddenSize; ++i)
-          for (int k = 0; k < config.embeddingSize; ++k)
-            hidden[i] += W1[i][offset + k] * E[tok][k];
+        for (int i = 0; i < hiddenSize; ++i)
+          hidden[i] += kernels.dot(W1[i], offset, E[tok], 0, embeddingSize);
       }
-      offset += config.embeddingSize;
+      offset += embeddingSize;
     }
 
-    for (int i = 0; i < config.hiddenSize; ++i) {
-      hidden[i] += b1[i];
-      hidden[i] = hidden[i] * hidden[i] * hidden[i];  // cube nonlinearity
+    kernels.biasCube(hidden, b1, hiddenSize);  // cube nonlinearity
+
+    if (activationRange != null) {
+      for (int i = 0; i < hiddenSize; ++i)
+        activationRange[i] = Math.max(activationRange[i], Math.abs(hidden[i]));
     }
+  }
 
-    double[] scores = new double[numLabels];
-    for (int i = 0; i < numLabels; ++i)
-      for (int j = 0; j < config.hiddenSize; ++j)
-        scores[i] += W2[i][j] * hidden[j];
-    return scores;
+  /**
+   * Tabulate the hidden-layer contribution of every token ID in
+   * {@code [firstTok, firstTok + numToks)} at every feature position
+   * in {@code [firstPos, endPos)}. Feedforward passes then read these
+   * features straight from the table, without an index lookup or a
+   * fallback product. This is meant for the small POS and label
+   * vocabularies, whose full tables are cheap.
+   *
+   * The table is computed from the current weights, so it is only
+   * valid for an inference-only classifier.
+   */
+  void preComputeDense(int firstPos, int endPos, int firstTok, int numToks) {
+    if (dense == null) {
+      dense = new double[0];
+      denseFirstTok = new int[config.numTokens];
+      denseNumToks = new int[config.numTokens];
+      denseBase = new int[config.numTokens];
+    }
+
+    int hiddenSize = config.hiddenSize;
+    int embeddingSize = config.embeddingSize;
+    int w1Cols = embeddingSize * config.numTokens;
+
+    int firstRow = dense.length / hiddenSize;
+    dense = Arrays.copyOf(dense, (firstRow + (endPos - firstPos) * numToks) * hiddenSize);
+
+    int row = firstRow;
+    for (int j = firstPos; j < endPos; ++j) {
+      denseFirstTok[j] = firstTok;
+      denseNumToks[j] = numToks;
+      denseBase[j] = row;
+
+      int offset = j * embeddingSize;
+      for (int tok = firstTok; tok < firstTok + numToks; ++tok, ++row) {
+        for (int i = 0; i < hiddenSize; ++i)
+          dense[row * hiddenSize + i] = floatW1 != null
+              ? kernels.dot(floatW1, i * w1Cols + offset, floatE, tok * embeddingSize, embeddingSize)
+              : kernels.dot(W1[i], offset, E[tok], 0, embeddingSize);
+      }
+    }
+  }
+
+  /**
+   * Look up the hidden-layer contribution of a feature in
+   * {@link #preComputeCache}, computing and caching it on a miss.
+   */
+  private double[] cachedContribution(int index) {
+    double[] row = preComputeCache.get(index);
+    if (row != null)
+      return row;
+
+    int tok = index / config.numTokens;
+    int offset = (index % config.numTokens) * config.embeddingSize;
+    int w1Cols = config.embeddingSize * config.numTokens;
+    row = new double[config.hiddenSize];
+    for (int i = 0; i < config.hiddenSize; ++i)
+      row[i] = floatW1 != null
+          ? kernels.dot(floatW1, i * w1Cols + offset, floatE, tok * config.embeddingSize, config.embeddingSize)
+          : kernels.dot(W1[i], offset, E[tok], 0, config.embeddingSize);
+
+    preComputeCache.put(index, row);
+    return row;
+  }
+
+  /**
+   * Output-layer score of transition {@code label} given hidden-layer
+   * activations.
+   */
+  private double dotW2(int label, double[] hidden) {
+    if (floatW2 != null)
+      return kernels.dot(floatW2, label * hidden.length, hidden, 0, hidden.length);
+    return kernels.dot(W2[label], 0, hidden, 0, hidden.length);
+  }
+
+  /**
+   * @return Whether activation ranges are being recorded, in which
+   *         case feedforward calls must come from a single thread
+   */
+  boolean isCalibrating() {
+    return activationRange != null;
   }
 
+  /**
+   * Begin recording the range of the cubed hidden-layer activations
+   * produced by subsequent calls to {@code computeScores}.
+   *
+   * @see #finishCalibration()
+   */
+  void startCalibration() {
+    activationRange = new double[config.hiddenSize];
+  }
+
+  /**
+   * Stop recording activation ranges.
+   *
+   * @return The largest absolute value observed for each cubed hidden
+   *         unit since {@link #startCalibration()}
+   */
+  double[] finishCalibration() {
+    double[] range = activationRange;
+    activationRange = null;
+    return range;
+  }
+
+  /**
+   * Switch this classifier to int8-quantized inference. The
+   * full-precision weights and all pre-computed activations (saved,
+   * exhaustively tabulated or cached) are released, so the weight
+   * getters may no longer be called.
+   *
+   * @param activationRange Per-unit activation ranges, as returned by
+   *                        {@link #finishCalibration()}
+   * @return Size of the quantized tables, in bytes
+   */
+  long quantize(double[] activationRange) {
+    quantized = new QuantizedScorer(config, this, activationRange);
+    W1 = W2 = E = null;
+    floatE = floatW1 = floatW2 = null;
+    saved = null;
+    savedFloat = null;
+    savedAt = null;
+    dense = null;
+    denseFirstTok = denseNumToks = denseBase = null;
+    preComputeCache = null;
+    return quantized.sizeInBytes();
+  }
+
+  IntIntMap getPreMap() {
+    return preMap;
+  }
+
+  /**
+   * @return Pre-computed activation of hidden unit {@code i} for saved
+   *         index {@code id}
+   */
+  double getSaved(int id, int i) {
+    return savedFloat != null ? savedFloat[id * config.hiddenSize + i] : saved[id][i];
+  }
+
+  /**
+   * Weight getters return the double-precision matrices. For a
+   * classifier holding single-precision weights, these are widened
+   * copies rebuilt on each call.
+   *
+   * @throws IllegalStateException If the classifier has been quantized
+   */
   public double[][] getW1() {
-    return W1;
+    checkNotQuantized();
+    return W1 != null ? W1 : toMatrix(floatW1, config.hiddenSize);
   }
 
   public double[] getb1() {
@@ -722,11 +2573,43 @@ public class Classifier  {
   }
 
   public double[][] getW2() {
-    return W2;
+    checkNotQuantized();
+    return W2 != null ? W2 : toMatrix(floatW2, numLabels);
   }
 
   public double[][] getE() {
-    return E;
+    checkNotQuantized();
+    catchUpAll();
+    return E != null ? E : toMatrix(floatE, numEmbeddings());
+  }
+
+  private void checkNotQuantized() {
+    if (quantized != null)
+      throw new IllegalStateException("Full-precision weights were released when the classifier was quantized");
+  }
+
+  /**
+   * Copy a 2d array into a single-precision, row-major flat array.
+   */
+  private static float[] toFlatFloat(double[][] m) {
+    int cols = m[0].length;
+    float[] flat = new float[m.length * cols];
+    for (int i = 0; i < m.length; i++)
+      for (int j = 0; j < cols; j++)
+        flat[i * cols + j] = (float) m[i][j];
+    return flat;
+  }
+
+  /**
+   * Inverse of {@link #toFlatFloat(double[][])}.
+   */
+  private static double[][] toMatrix(float[] flat, int rows) {
+    int cols = flat.length / rows;
+    double[][] m = new double[rows][cols];
+    for (int i = 0; i < rows; i++)
+      for (int j = 0; j < cols; j++)
+        m[i][j] = flat[i * cols + j];
+    return m;
   }
 
   /**
@@ -55,7 +55,8 @@ public class Config {
   /**
    * Number of threads to use during training. Also indirectly controls
    * how mini-batches are partitioned (more threads => more partitions
-   * => smaller partitions).
+   * => smaller partitions). The training examples are generated on as
+   * many threads.
    */
   public int trainingThreads = 1;
 
@@ -104,6 +105,8 @@ public class Config {
    * Dropout probability. For each training example we randomly choose
    * some amount of units to disable in the neural network classifier.
    * This probability controls the proportion of units "dropped out."
+   * Masks are drawn from the shared random generator's seed, and do not
+   * depend on the number of {@link #trainingThreads}.
    */
   public double dropProb = 0.5;
 
@@ -133,6 +136,31 @@ public class Config {
    */
   public int numPreComputed = 100000;
 
+  /**
+   * At parse time, skip the up-front pre-computation step. Hidden-layer
+   * contributions are instead computed the first time each
+   * (token, position) pair is seen and kept in a bounded cache of
+   * {@link #preComputeCacheSize} entries which favors frequently used
+   * pairs. Parsers start almost immediately, and the cached set adapts
+   * to the text being parsed.
+   */
+  public boolean lazyPreCompute = false;
+
+  /**
+   * At parse time, tabulate the hidden-layer contribution of every
+   * part-of-speech tag at every POS feature position and of every arc
+   * label at every label feature position. These vocabularies are
+   * tiny, so the tables are small, and only word features are then
+   * left to the pre-computation index (or cache) and the slow path.
+   */
+  public boolean exhaustivePreCompute = false;
+
+  /**
+   * Approximate number of entries in the cache used by
+   * {@link #lazyPreCompute}.
+   */
+  public int preComputeCacheSize = 100000;
+
   /**
    * During training, run a full UAS evaluation after every
    * {@code evalPerIter} iterations.
@@ -175,6 +203,208 @@ public class Config {
   */
   public boolean doWordEmbeddingGradUpdate = true;
 
+  /**
+   * Regularize lazily during training. Rows of the embedding matrix
+   * that a mini-batch does not use are left alone; the L2 decay they
+   * missed is applied in one go when they are next used, before
+   * evaluation, and when training finishes. The L2 term of the other
+   * weights is folded into the AdaGrad step, and the reported cost is
+   * computed from running sums of squares.
+   */
+  public boolean lazyRegularization = false;
+
+  /**
+   * Train Hogwild-style: rather than splitting each mini-batch among
+   * the training threads and merging their gradients, every thread
+   * repeatedly samples {@link #hogwildBatchSize} examples and applies
+   * its AdaGrad update straight to the shared weights, without locks.
+   * An iteration still covers {@link #batchSize} examples in total.
+   * Each update touches, and regularizes, only the weights its
+   * examples reached. Pre-computed hidden-layer activations are not
+   * used in this mode, and {@link #lazyRegularization} does not apply.
+   */
+  public boolean hogwild = false;
+
+  /**
+   * Number of examples behind each weight update of a thread in
+   * {@link #hogwild} mode.
+   */
+  public int hogwildBatchSize = 100;
+
+  /**
+   * Keep the training examples in direct buffers outside the Java heap,
+   * so that a large training set neither needs a large {@code -Xmx} nor
+   * adds to garbage-collection work.
+   */
+  public boolean offHeapExamples = false;
+
+  /**
+   * Evaluate on the dev set (and save the best model so far) on a
+   * background thread, using a copy of the weights taken at the
+   * evaluation's iteration, instead of pausing training. At most one
+   * evaluation is in flight; the next one waits for it.
+   */
+  public boolean asyncEval = false;
+
+  /**
+   * Write a binary checkpoint of the training state to
+   * {@link #checkpointFile} every time we finish this number of
+   * iterations. Checkpoints are written on a background thread and
+   * replace the previous one atomically. 0 disables checkpointing.
+   */
+  public int checkpointPerIter = 0;
+
+  /**
+   * File to which training checkpoints are written, and from which
+   * {@link #resume} reads. If {@code null}, the model file name with
+   * {@code .ckpt} appended.
+   */
+  public String checkpointFile = null;
+
+  /**
+   * Resume training from {@link #checkpointFile}, restoring the
+   * weights, AdaGrad histories, iteration, best UAS and random
+   * generator state. If there is no checkpoint yet, training starts
+   * from scratch. The resumed run takes the same steps as an
+   * uninterrupted one would, except that several training threads
+   * add up gradients in varying order, {@link #streamExamples} starts
+   * a new shuffled pass over the training sentences, and
+   * {@link #psWorkers} draw their mini-batches afresh.
+   */
+  public boolean resume = false;
+
+  /**
+   * Generate training examples on background threads while training,
+   * instead of replaying the oracle over the whole training set before
+   * the first iteration. Each iteration then trains on the next
+   * {@link #batchSize} examples of a shuffled pass over the training
+   * sentences, and the examples kept in memory are bounded by
+   * {@link #streamQueueSize}. The pre-computed features are chosen
+   * from the first mini-batch.
+   */
+  public boolean streamExamples = false;
+
+  /**
+   * Number of threads generating examples in {@link #streamExamples}
+   * mode.
+   */
+  public int streamThreads = 1;
+
+  /**
+   * Number of generated mini-batches that may wait for the trainer in
+   * {@link #streamExamples} mode.
+   */
+  public int streamQueueSize = 4;
+
+  /**
+   * Store the pre-computed hidden-layer activations (and, for a loaded
+   * model, the weight matrices) as single-precision values in flat,
+   * row-major arrays. This halves the memory taken by the
+   * pre-computation table at a small cost in numerical precision.
+   */
+  public boolean floatWeights = false;
+
+  /**
+   * Train with single-precision master copies of E, W1 and W2, and
+   * single-precision pre-computed activations. Sums that need the
+   * range or precision (mini-batch gradients, softmax normalization,
+   * AdaGrad histories) stay in double precision, and so does b1. The
+   * model file is written as usual. The savings show mostly with
+   * {@link #simd} kernels, which widen floats a vector at a time.
+   */
+  public boolean mixedPrecision = false;
+
+  /**
+   * Run the classifier's dense inner loops on SIMD kernels built on
+   * the Vector API (see {@link Kernels}). Falls back to scalar kernels
+   * if the JVM was not started with
+   * {@code --add-modules jdk.incubator.vector}.
+   */
+  public boolean simd = false;
+
+  /**
+   * Train on this many worker processes on the local machine, each of
+   * which generates and holds the examples of its own shard of the
+   * training sentences. This process acts as parameter server: it
+   * keeps the weights and AdaGrad state, hands each worker the weights
+   * its next mini-batch reads and applies the gradients it sends back.
+   * Each worker computes its share of {@link #batchSize} on
+   * {@link #trainingThreads} threads. 0 trains in this process alone.
+   * Cannot be combined with {@link #hogwild} or
+   * {@link #streamExamples}.
+   *
+   * Known limitation: only E is exchanged sparsely. W1, b1 and W2 go
+   * out whole on every pull and their gradients come back whole on
+   * every push, in double precision (about 4 MB each way per worker
+   * and step with the default sizes). Sending only what changed since
+   * a worker's last pull would not help as things stand: every step
+   * moves nearly all of W1 and W2, through the L2 term and through
+   * gradients that reach every feature position. The exchange is
+   * therefore meant for local sockets, and pays off when generating
+   * and backpropagating a worker's examples costs more than copying
+   * the weights.
+   *
+   * @see ParameterServer
+   */
+  public int psWorkers = 0;
+
+  /**
+   * How far {@link #psWorkers} may run ahead of each other. With 0,
+   * training is synchronous: every step sums the gradients of all
+   * workers, as one mini-batch in a single process would. With
+   * {@code n > 0}, each worker's gradient is applied as its own step
+   * as soon as it arrives, and a worker may start a step only while
+   * it is at most {@code n} steps ahead of the slowest worker. Each of
+   * these steps carries {@code 1 / psWorkers} of the L2 term, so that
+   * a round of steps is regularized as much as a synchronous one.
+   */
+  public int psStaleness = 0;
+
+  /**
+   * JVM options for {@link #psWorkers} processes, separated by
+   * whitespace (e.g. {@code -Xmx8g}). If {@code null}, workers are
+   * started with the options of this JVM.
+   */
+  public String psJvmOptions = null;
+
+  /**
+   * Address ({@code host:port}) of the parameter server a worker
+   * process trains for. Set on the command line of the processes
+   * launched for {@link #psWorkers}, which receive the rest of their
+   * configuration from the server.
+   */
+  public String psServer = null;
+
+  /**
+   * Draw mini-batches in epochs: walk through a shuffled order of the
+   * training examples, so that every example is trained on once before
+   * any is seen again. By default each mini-batch is sampled afresh,
+   * and an example may come up again before others are seen at all.
+   * Does not apply to {@link #hogwild} or {@link #streamExamples}
+   * training.
+   */
+  public boolean epochSampling = false;
+
+  /**
+   * Train on the examples of each mini-batch in the order they are
+   * stored, so that the training threads read the example store
+   * sequentially rather than at random. This changes which thread
+   * computes which example, not which examples are drawn.
+   */
+  public boolean sortMiniBatches = false;
+
+  /**
+   * Run the forward and backward passes of each training thread's
+   * chunk of a mini-batch a block of examples at a time, as
+   * cache-blocked matrix products (see {@link BlockedGemm}), rather
+   * than example by example. Features with pre-computed activations
+   * still read them from the table, and dropout is applied as a mask.
+   * Results agree with the per-example computation up to rounding.
+   * The gain is largest when many features are not pre-computed.
+   * {@link #hogwild} training is not affected.
+   */
+  public boolean gemmBackprop = false;
+
   /**
    * Describes language-specific properties necessary for training and
    * testing. By default,
@@ -208,7 +438,45 @@ public class Config {
    */
   public String tagger = MaxentTagger.DEFAULT_JAR_PATH;
 
+  /**
+   * Number of sentences parsed in lockstep when parsing a whole file.
+   * The feature vectors of all unfinished sentences in a batch are
+   * scored together at every step.
+   */
+  public int parseBatchSize = 64;
+
+  /**
+   * Number of threads used to parse a whole file. Batches of sentences
+   * are spread over a fork-join pool of this size; parses are still
+   * returned in input order.
+   */
+  public int parseThreads = 1;
+
+  /**
+   * Serve predictions from an int8-quantized copy of the loaded model
+   * (see {@link QuantizedScorer}). Requires {@link #calibrationFile}.
+   * The full-precision weights are released once the quantized copy is
+   * built, so the model cannot be written out afterwards.
+   */
+  public boolean quantize = false;
+
+  /**
+   * CoNLL-X treebank used to calibrate activation ranges for
+   * {@link #quantize quantized} inference. The UAS / LAS of the
+   * quantized model on this data is reported against the
+   * full-precision model.
+   */
+  public String calibrationFile = null;
+
+  /**
+   * The properties this configuration was read from, with which
+   * {@link #psWorkers} processes are configured.
+   */
+  final Properties properties;
+
   public Config(Properties properties) {
+    this.properties = new Properties();
+    this.properties.putAll(properties);
     setProperties(properties);
   }
 
@@ -225,6 +493,9 @@ public class Config {
     hiddenSize = PropertiesUtils.getInt(props, "hiddenSize", hiddenSize);
     embeddingSize = PropertiesUtils.getInt(props, "embeddingSize", embeddingSize);
     numPreComputed = PropertiesUtils.getInt(props, "numPreComputed", numPreComputed);
+    lazyPreCompute = PropertiesUtils.getBool(props, "lazyPreCompute", lazyPreCompute);
+    exhaustivePreCompute = PropertiesUtils.getBool(props, "exhaustivePreCompute", exhaustivePreCompute);
+    preComputeCacheSize = PropertiesUtils.getInt(props, "preComputeCacheSize", preComputeCacheSize);
     evalPerIter = PropertiesUtils.getInt(props, "evalPerIter", evalPerIter);
     clearGradientsPerIter = PropertiesUtils.getInt(props, "clearGradientsPerIter", clearGradientsPerIter);
     saveIntermediate = PropertiesUtils.getBool(props, "saveIntermediate", saveIntermediate);
@@ -232,10 +503,35 @@ public class Config {
     cPOS = PropertiesUtils.getBool(props, "cPOS", cPOS);
     noPunc = PropertiesUtils.getBool(props, "noPunc", noPunc);
     doWordEmbeddingGradUpdate = PropertiesUtils.getBool(props, "doWordEmbeddingGradUpdate", doWordEmbeddingGradUpdate);
+    lazyRegularization = PropertiesUtils.getBool(props, "lazyRegularization", lazyRegularization);
+    hogwild = PropertiesUtils.getBool(props, "hogwild", hogwild);
+    hogwildBatchSize = PropertiesUtils.getInt(props, "hogwildBatchSize", hogwildBatchSize);
+    offHeapExamples = PropertiesUtils.getBool(props, "offHeapExamples", offHeapExamples);
+    asyncEval = PropertiesUtils.getBool(props, "asyncEval", asyncEval);
+    checkpointPerIter = PropertiesUtils.getInt(props, "checkpointPerIter", checkpointPerIter);
+    checkpointFile = PropertiesUtils.getString(props, "checkpointFile", checkpointFile);
+    resume = PropertiesUtils.getBool(props, "resume", resume);
+    streamExamples = PropertiesUtils.getBool(props, "streamExamples", streamExamples);
+    streamThreads = PropertiesUtils.getInt(props, "streamThreads", streamThreads);
+    streamQueueSize = PropertiesUtils.getInt(props, "streamQueueSize", streamQueueSize);
+    floatWeights = PropertiesUtils.getBool(props, "floatWeights", floatWeights);
+    mixedPrecision = PropertiesUtils.getBool(props, "mixedPrecision", mixedPrecision);
+    simd = PropertiesUtils.getBool(props, "simd", simd);
+    psWorkers = PropertiesUtils.getInt(props, "psWorkers", psWorkers);
+    psStaleness = PropertiesUtils.getInt(props, "psStaleness", psStaleness);
+    psJvmOptions = PropertiesUtils.getString(props, "psJvmOptions", psJvmOptions);
+    psServer = PropertiesUtils.getString(props, "psServer", psServer);
+    epochSampling = PropertiesUtils.getBool(props, "epochSampling", epochSampling);
+    sortMiniBatches = PropertiesUtils.getBool(props, "sortMiniBatches", sortMiniBatches);
+    gemmBackprop = PropertiesUtils.getBool(props, "gemmBackprop", gemmBackprop);
 
     // Runtime parsing options
     sentenceDelimiter = PropertiesUtils.getString(props, "sentenceDelimiter", sentenceDelimiter);
     tagger = PropertiesUtils.getString(props, "tagger.model", tagger);
+    parseBatchSize = PropertiesUtils.getInt(props, "parseBatchSize", parseBatchSize);
+    parseThreads = PropertiesUtils.getInt(props, "parseThreads", parseThreads);
+    quantize = PropertiesUtils.getBool(props, "quantize", quantize);
+    calibrationFile = PropertiesUtils.getString(props, "calibrationFile", calibrationFile);
 
     String escaperClass = props.getProperty("escaper");
     escaper = escaperClass != null ? ReflectionLoading.loadByReflection(escaperClass) : null;
@@ -283,6 +579,26 @@ public class Config {
     System.err.printf("cPOS = %b%n", cPOS);
     System.err.printf("noPunc = %b%n", noPunc);
     System.err.printf("doWordEmbeddingGradUpdate = %b%n", doWordEmbeddingGradUpdate);
+    System.err.printf("lazyRegularization = %b%n", lazyRegularization);
+    System.err.printf("hogwild = %b%n", hogwild);
+    System.err.printf("hogwildBatchSize = %d%n", hogwildBatchSize);
+    System.err.printf("offHeapExamples = %b%n", offHeapExamples);
+    System.err.printf("asyncEval = %b%n", asyncEval);
+    System.err.printf("checkpointPerIter = %d%n", checkpointPerIter);
+    System.err.printf("checkpointFile = %s%n", checkpointFile);
+    System.err.printf("resume = %b%n", resume);
+    System.err.printf("streamExamples = %b%n", streamExamples);
+    System.err.printf("streamThreads = %d%n", streamThreads);
+    System.err.printf("streamQueueSize = %d%n", streamQueueSize);
+    System.err.printf("floatWeights = %b%n", floatWeights);
+    System.err.printf("mixedPrecision = %b%n", mixedPrecision);
+    System.err.printf("simd = %b%n", simd);
+    System.err.printf("psWorkers = %d%n", psWorkers);
+    System.err.printf("psStaleness = %d%n", psStaleness);
+    System.err.printf("psJvmOptions = %s%n", psJvmOptions);
+    System.err.printf("epochSampling = %b%n", epochSampling);
+    System.err.printf("sortMiniBatches = %b%n", sortMiniBatches);
+    System.err.printf("gemmBackprop = %b%n", gemmBackprop);
   }
 
 }
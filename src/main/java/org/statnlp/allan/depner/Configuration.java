@@ -34,18 +34,19 @@ public class Configuration {
   }
 
   public Configuration(CoreMap sentence) {
-    this.stack = new ArrayList<>();
-    this.buffer = new ArrayList<>();
+    // The stack holds at most every word plus ROOT; sizing it up front
+    // keeps parsing steps from reallocating it
+    int capacity = sentence.get(CoreAnnotations.TokensAnnotation.class).size() + 1;
+    this.stack = new ArrayList<>(capacity);
+    this.buffer = new ArrayList<>(capacity);
     this.tree = new DependencyTree();
     this.sentence = sentence;
   }
 
   public boolean shift() {
-    int k = getBuffer(0);
-    if (k == Config.NONEXIST)
+    if (buffer.isEmpty())
       return false;
-    buffer.remove(0);
-    stack.add(k);
+    stack.add(buffer.remove(0));
     return true;
   }
 
@@ -7,33 +7,281 @@ package org.statnlp.allan.depner;
 */
 
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * Defines a list of training / testing examples in multi-class classification
  * setting.
  *
+ * Examples are stored unboxed: the feature IDs of all examples are
+ * packed one after the other into int blocks, and each label (-1, 0 or
+ * 1 for every transition) takes two bits of a long bitmap. Blocks hold
+ * {@value #BLOCK_SIZE} examples each, so the dataset grows without
+ * copying, and may be allocated off-heap. Read examples back through a
+ * {@link Cursor}; {@link #examples} remains as a boxed view for older
+ * code.
+ *
  * @author Danqi Chen
  */
 
 public class Dataset {
 
+	/** Number of examples per storage block */
+	private static final int BLOCK_SIZE = 1 << 14;
+
 	public int n;
 	public final int numFeatures, numLabels;
+
+	/**
+	 * A boxed view of the examples, materialized on each access.
+	 * Prefer {@link #cursor(int[], int, int)} where speed matters.
+	 */
 	public final List<Example> examples;
 
+	/** Whether blocks are allocated outside the Java heap */
+	private final boolean offHeap;
+
+	/** Number of longs holding the labels of one example */
+	private final int labelWords;
+
+	private final List<IntBuffer> featureBlocks = new ArrayList<>();
+	private final List<LongBuffer> labelBlocks = new ArrayList<>();
+
 	public Dataset(int numFeatures, int numLabels) {
+		this(numFeatures, numLabels, false);
+	}
+
+	/**
+	 * @param offHeap Whether to keep the examples in direct buffers,
+	 *                outside the garbage-collected heap
+	 */
+	public Dataset(int numFeatures, int numLabels, boolean offHeap) {
 		n = 0;
 		this.numFeatures = numFeatures;
 		this.numLabels = numLabels;
-		examples = new ArrayList<>();
+		this.offHeap = offHeap;
+		labelWords = (numLabels * 2 + 63) / 64;
+		examples = new ExampleView();
 	}
 
 	public void addExample(List<Integer> feature, List<Integer> label) {
-		Example data = new Example(feature, label);
+		int[] f = new int[numFeatures];
+		for (int j = 0; j < numFeatures; ++j)
+			f[j] = feature.get(j);
+		int[] l = new int[numLabels];
+		for (int i = 0; i < numLabels; ++i)
+			l[i] = label.get(i);
+		addExample(f, l);
+	}
+
+	/**
+	 * Append an example. The arrays are copied, so the caller may reuse
+	 * them.
+	 *
+	 * @param label -1 (illegal), 0 (legal) or 1 (gold) per transition
+	 */
+	public void addExample(int[] feature, int[] label) {
+		ensureBlock();
 		n += 1;
-		examples.add(data);
+		set(n - 1, feature, label);
+	}
+
+	/**
+	 * Append all examples of {@code other}, in order.
+	 */
+	public void addAll(Dataset other) {
+		if (other.numFeatures != numFeatures || other.numLabels != numLabels)
+			throw new IllegalArgumentException("Datasets have different shapes");
+
+		for (int k = 0; k < other.n; ++k) {
+			ensureBlock();
+			IntBuffer fromFeatures = other.featureBlocks.get(k / BLOCK_SIZE);
+			IntBuffer toFeatures = featureBlocks.get(n / BLOCK_SIZE);
+			int from = (k % BLOCK_SIZE) * numFeatures, to = (n % BLOCK_SIZE) * numFeatures;
+			for (int j = 0; j < numFeatures; ++j)
+				toFeatures.put(to + j, fromFeatures.get(from + j));
+
+			LongBuffer fromLabels = other.labelBlocks.get(k / BLOCK_SIZE);
+			LongBuffer toLabels = labelBlocks.get(n / BLOCK_SIZE);
+			from = (k % BLOCK_SIZE) * labelWords;
+			to = (n % BLOCK_SIZE) * labelWords;
+			for (int w = 0; w < labelWords; ++w)
+				toLabels.put(to + w, fromLabels.get(from + w));
+			n += 1;
+		}
+	}
+
+	/**
+	 * Make sure there is a block to hold example {@link #n}.
+	 */
+	private void ensureBlock() {
+		if (n / BLOCK_SIZE == featureBlocks.size()) {
+			featureBlocks.add(allocate(BLOCK_SIZE * numFeatures * 4).asIntBuffer());
+			labelBlocks.add(allocate(BLOCK_SIZE * labelWords * 8).asLongBuffer());
+		}
+	}
+
+	private ByteBuffer allocate(int bytes) {
+		ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+		return buffer.order(ByteOrder.nativeOrder());
+	}
+
+	private void set(int index, int[] feature, int[] label) {
+		if (feature.length != numFeatures || label.length != numLabels)
+			throw new IllegalArgumentException("Expected " + numFeatures + " features and " + numLabels
+			    + " labels, got " + feature.length + " and " + label.length);
+
+		IntBuffer features = featureBlocks.get(index / BLOCK_SIZE);
+		int featureBase = (index % BLOCK_SIZE) * numFeatures;
+		for (int j = 0; j < numFeatures; ++j)
+			features.put(featureBase + j, feature[j]);
+
+		LongBuffer labels = labelBlocks.get(index / BLOCK_SIZE);
+		int labelBase = (index % BLOCK_SIZE) * labelWords;
+		for (int w = 0; w < labelWords; ++w) {
+			long word = 0;
+			for (int i = w * 32; i < Math.min(numLabels, w * 32 + 32); ++i) {
+				if (label[i] < -1 || label[i] > 1)
+					throw new IllegalArgumentException("Label values must be -1, 0 or 1, got " + label[i]);
+				word |= (long) (label[i] + 1) << ((i & 31) << 1);
+			}
+			labels.put(labelBase + w, word);
+		}
+	}
+
+	/**
+	 * Remove all examples, keeping the allocated blocks for reuse.
+	 */
+	public void clear() {
+		n = 0;
+	}
+
+	/**
+	 * @return Approximate number of bytes taken by the stored examples
+	 */
+	public long storageBytes() {
+		return (long) featureBlocks.size() * BLOCK_SIZE * (numFeatures * 4L + labelWords * 8L);
+	}
+
+	/**
+	 * @return A cursor over all examples, in order
+	 */
+	public Cursor cursor() {
+		return new Cursor(null, 0, n);
+	}
+
+	/**
+	 * @return A cursor over examples {@code from} through {@code to - 1}
+	 */
+	public Cursor cursor(int from, int to) {
+		return new Cursor(null, from, to);
+	}
+
+	/**
+	 * @return A cursor over the examples whose indices are stored in
+	 *         {@code indices[from]} through {@code indices[to - 1]}
+	 */
+	public Cursor cursor(int[] indices, int from, int to) {
+		return new Cursor(indices, from, to);
+	}
+
+	/**
+	 * Reads examples without boxing. Call {@link #next()} to move to
+	 * the first example, then read its features and labels. A cursor is
+	 * cheap and not thread-safe; each thread should take its own.
+	 */
+	public final class Cursor {
+
+		private final int[] indices;
+		private final int end;
+		private int position;
+
+		private IntBuffer features;
+		private int featureBase;
+		private LongBuffer labels;
+		private int labelBase;
+
+		private Cursor(int[] indices, int from, int to) {
+			this.indices = indices;
+			this.position = from - 1;
+			this.end = to;
+		}
+
+		/**
+		 * Move to the next example.
+		 *
+		 * @return Whether there was one
+		 */
+		public boolean next() {
+			if (++position >= end)
+				return false;
+			int index = indices == null ? position : indices[position];
+			features = featureBlocks.get(index / BLOCK_SIZE);
+			featureBase = (index % BLOCK_SIZE) * numFeatures;
+			labels = labelBlocks.get(index / BLOCK_SIZE);
+			labelBase = (index % BLOCK_SIZE) * labelWords;
+			return true;
+		}
+
+		/**
+		 * @return Feature ID {@code j} of the current example
+		 */
+		public int feature(int j) {
+			return features.get(featureBase + j);
+		}
+
+		/**
+		 * @return -1 if transition {@code i} is illegal for the current
+		 *         example, 1 if it is the gold transition and 0 otherwise
+		 */
+		public int label(int i) {
+			long word = labels.get(labelBase + (i >> 5));
+			return (int) (word >>> ((i & 31) << 1) & 3) - 1;
+		}
+
+	}
+
+	/**
+	 * Boxed, list-of-{@link Example} view of the dataset.
+	 */
+	private class ExampleView extends AbstractList<Example> {
+
+		@Override
+		public Example get(int index) {
+			if (index < 0 || index >= n)
+				throw new IndexOutOfBoundsException("Index: " + index + ", size: " + n);
+			Cursor c = cursor(new int[] { index }, 0, 1);
+			c.next();
+			Integer[] feature = new Integer[numFeatures];
+			for (int j = 0; j < numFeatures; ++j)
+				feature[j] = c.feature(j);
+			Integer[] label = new Integer[numLabels];
+			for (int i = 0; i < numLabels; ++i)
+				label[i] = c.label(i);
+			return new Example(Arrays.asList(feature), Arrays.asList(label));
+		}
+
+		@Override
+		public Example set(int index, Example example) {
+			Example old = get(index);
+			int[] feature = example.getFeature().stream().mapToInt(Integer::intValue).toArray();
+			int[] label = example.getLabel().stream().mapToInt(Integer::intValue).toArray();
+			Dataset.this.set(index, feature, label);
+			return old;
+		}
+
+		@Override
+		public int size() {
+			return n;
+		}
+
 	}
 
 }
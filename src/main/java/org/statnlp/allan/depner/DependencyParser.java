@@ -13,9 +13,6 @@ import edu.stanford.nlp.ling.IndexedWord;
 import edu.stanford.nlp.ling.TaggedWord;
 import edu.stanford.nlp.ling.Word;
 import edu.stanford.nlp.process.DocumentPreprocessor;
-import edu.stanford.nlp.stats.Counter;
-import edu.stanford.nlp.stats.Counters;
-import edu.stanford.nlp.stats.IntCounter;
 import edu.stanford.nlp.tagger.maxent.MaxentTagger;
 import edu.stanford.nlp.trees.EnglishGrammaticalRelations;
 import edu.stanford.nlp.trees.EnglishGrammaticalStructure;
@@ -37,8 +34,13 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.*;
-
-import static java.util.stream.Collectors.toList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * This class defines a transition-based dependency parser which makes
@@ -118,6 +120,21 @@ public class DependencyParser  {
   private Classifier classifier;
   private ParsingSystem system;
 
+  /**
+   * Source of training mini-batches while training with
+   * {@link Config#streamExamples}; otherwise {@code null}.
+   */
+  private ExampleStream exampleStream;
+
+  /**
+   * Server of the worker processes while training with
+   * {@link Config#psWorkers}; otherwise {@code null}.
+   */
+  private ParameterServer parameterServer;
+
+  /** Pool for parallel parsing; see {@link #parsePool()} */
+  private ForkJoinPool parsePool;
+
   private final Config config;
 
   /**
@@ -131,13 +148,39 @@ public class DependencyParser  {
   }
 
   public DependencyParser(Properties properties) {
-    config = new Config(properties);
+    this(new Config(properties));
+  }
+
+  private DependencyParser(Config config) {
+    this.config = config;
 
     // Convert Languages.Language instance to
     // GrammaticalLanguage.Language
     this.language = config.language;
   }
 
+  /**
+   * @return A parser sharing this one's dictionaries and parsing
+   *         system, with a snapshot of its classifier in training (see
+   *         {@link Classifier#snapshot()}). It can evaluate or save the
+   *         current weights on another thread while training goes on.
+   */
+  private DependencyParser snapshot() {
+    DependencyParser copy = new DependencyParser(config);
+    copy.knownWords = knownWords;
+    copy.knownPos = knownPos;
+    copy.knownLabels = knownLabels;
+    copy.wordIDs = wordIDs;
+    copy.posIDs = posIDs;
+    copy.labelIDs = labelIDs;
+    copy.preComputed = preComputed;
+    copy.system = system;
+    copy.classifier = classifier.snapshot();
+    if (config.parseThreads > 1)
+      copy.parsePool = parsePool();
+    return copy;
+  }
+
   /**
    * Get an integer ID for the given word. This ID can be used to index
    * into the embeddings {@link Classifier#E}.
@@ -218,8 +261,12 @@ public class DependencyParser  {
   private static final int STACK_OFFSET = 6;
   private static final int STACK_NUMBER = 6;
 
-  private int[] getFeatureArray(Configuration c) {
-    int[] feature = new int[config.numTokens];  // positions 0-17 hold fWord, 18-35 hold fPos, 36-47 hold fLabel
+  /**
+   * Extract the feature vector of a configuration into {@code feature},
+   * which must have {@link Config#numTokens} entries.
+   */
+  private int[] getFeatureArray(Configuration c, int[] feature) {
+    // positions 0-17 hold fWord, 18-35 hold fPos, 36-47 hold fLabel
 
     for (int j = 2; j >= 0; --j) {
       int index = c.getStack(j);
@@ -271,14 +318,85 @@ public class DependencyParser  {
   }
 
   public Dataset genTrainExamples(List<CoreMap> sents, List<DependencyTree> trees) {
+    IntIntMap featureCounts = new IntIntMap(config.numPreComputed);
+    Dataset ret = genTrainExamples(sents, trees, featureCounts);
+    preComputed = choosePreComputed(featureCounts);
+    return ret;
+  }
+
+  /**
+   * Generate the training examples of the given sentences, counting
+   * their feature IDs in {@code featureCounts}.
+   */
+  private Dataset genTrainExamples(List<CoreMap> sents, List<DependencyTree> trees, IntIntMap featureCounts) {
     int numTrans = system.numTransitions();
-    Dataset ret = new Dataset(config.numTokens, numTrans);
+    Dataset ret = new Dataset(config.numTokens, numTrans, config.offHeapExamples);
 
-    Counter<Integer> tokPosCount = new IntCounter<>();
     log.info(Config.SEPARATOR);
     log.info("Generate training examples...");
 
-    for (int i = 0; i < sents.size(); ++i) {
+    int numThreads = Math.max(1, Math.min(config.trainingThreads, sents.size()));
+    if (numThreads == 1) {
+      replayOracle(sents, trees, 0, sents.size(), ret, featureCounts);
+    } else {
+      // Replay contiguous chunks of sentences in parallel, each into its
+      // own dataset and counter, then concatenate the datasets in order
+      int numChunks = Math.min(4 * numThreads, sents.size());
+      Dataset[] chunkExamples = new Dataset[numChunks];
+      IntIntMap[] chunkCounts = new IntIntMap[numChunks];
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (int chunk = 0; chunk < numChunks; ++chunk) {
+        int c = chunk;
+        int start = (int) ((long) sents.size() * chunk / numChunks);
+        int end = (int) ((long) sents.size() * (chunk + 1) / numChunks);
+        tasks.add(() -> {
+          chunkExamples[c] = new Dataset(config.numTokens, numTrans, config.offHeapExamples);
+          chunkCounts[c] = new IntIntMap(config.numPreComputed);
+          replayOracle(sents, trees, start, end, chunkExamples[c], chunkCounts[c]);
+          return null;
+        });
+      }
+
+      ForkJoinPool pool = new ForkJoinPool(numThreads);
+      try {
+        for (Future<Void> result : pool.invokeAll(tasks))
+          result.get();
+      } catch (InterruptedException e) {
+        throw new RuntimeInterruptedException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException)
+          throw (RuntimeException) e.getCause();
+        throw new RuntimeException(e.getCause());
+      } finally {
+        pool.shutdown();
+      }
+
+      for (int chunk = 0; chunk < numChunks; ++chunk) {
+        ret.addAll(chunkExamples[chunk]);
+        featureCounts.addAll(chunkCounts[chunk]);
+        chunkExamples[chunk] = null;
+      }
+    }
+    log.info("#Train Examples: " + ret.n);
+    log.info(String.format("Example storage: %.1f MB%s", ret.storageBytes() / 1048576.0,
+        config.offHeapExamples ? " (off-heap)" : ""));
+
+    return ret;
+  }
+
+  /**
+   * Replay the oracle on the projective trees among sentences
+   * {@code start} to {@code end - 1}, appending their examples to
+   * {@code examples} and counting the feature IDs of those examples in
+   * {@code featureCounts}.
+   */
+  private void replayOracle(List<CoreMap> sents, List<DependencyTree> trees, int start, int end,
+                            Dataset examples, IntIntMap featureCounts) {
+    // Reused for every example; the dataset keeps its own copy
+    int[] feature = new int[config.numTokens];
+    int[] label = new int[system.numTransitions()];
+
+    for (int i = start; i < end; ++i) {
 
       if (i > 0) {
         if (i % 1000 == 0)
@@ -291,29 +409,62 @@ public class DependencyParser  {
         Configuration c = system.initialConfiguration(sents.get(i));
 
         while (!system.isTerminal(c)) {
-          String oracle = system.getOracle(c, trees.get(i));
-          List<Integer> feature = getFeatures(c);
-          List<Integer> label = new ArrayList<>();
-          for (int j = 0; j < numTrans; ++j) {
-            String str = system.transitions.get(j);
-            if (str.equals(oracle)) label.add(1);
-            else if (system.canApply(c, str)) label.add(0);
-            else label.add(-1);
-          }
-
-          ret.addExample(feature, label);
-          for (int j = 0; j < feature.size(); ++j)
-            tokPosCount.incrementCount(feature.get(j) * feature.size() + j);
+          String oracle = encodeExample(c, trees.get(i), feature, label);
+          examples.addExample(feature, label);
+          for (int j = 0; j < feature.length; ++j)
+            featureCounts.add(feature[j] * feature.length + j, 1);
           system.apply(c, oracle);
         }
       }
     }
-    log.info("#Train Examples: " + ret.n);
+  }
 
-    List<Integer> sortedTokens = Counters.toSortedList(tokPosCount, false);
-    preComputed = new ArrayList<>(sortedTokens.subList(0, Math.min(config.numPreComputed, sortedTokens.size())));
+  /**
+   * Write the feature vector of {@code c} and its label (-1 for an
+   * illegal transition, 1 for the gold one and 0 for any other) into
+   * the given arrays.
+   *
+   * This only reads the parser's dictionaries, so it may be called from
+   * several threads at once.
+   *
+   * @return The gold transition
+   */
+  String encodeExample(Configuration c, DependencyTree gold, int[] feature, int[] label) {
+    String oracle = system.getOracle(c, gold);
+    getFeatureArray(c, feature);
+    for (int j = 0; j < label.length; ++j) {
+      String str = system.transitions.get(j);
+      if (str.equals(oracle)) label[j] = 1;
+      else if (system.canApply(c, str)) label[j] = 0;
+      else label[j] = -1;
+    }
+    return oracle;
+  }
 
-    return ret;
+  /**
+   * @return The {@link Config#numPreComputed} feature IDs (token times
+   *         {@code numTokens} plus position) most frequent in the given
+   *         examples, most frequent first
+   */
+  private List<Integer> choosePreComputed(Dataset examples) {
+    IntIntMap featureCounts = new IntIntMap(config.numPreComputed);
+    Dataset.Cursor cursor = examples.cursor();
+    while (cursor.next()) {
+      for (int j = 0; j < examples.numFeatures; ++j)
+        featureCounts.add(cursor.feature(j) * examples.numFeatures + j, 1);
+    }
+    return choosePreComputed(featureCounts);
+  }
+
+  /**
+   * @return The {@link Config#numPreComputed} feature IDs with the
+   *         highest counts, highest first (ties go to the smaller ID)
+   */
+  private List<Integer> choosePreComputed(IntIntMap featureCounts) {
+    List<Integer> chosen = new ArrayList<>();
+    for (int featureID : featureCounts.topKeys(config.numPreComputed))
+      chosen.add(featureID);
+    return chosen;
   }
 
   /**
@@ -665,6 +816,9 @@ public class DependencyParser  {
     log.info("Embedding File: " + embedFile);
     log.info("Pre-trained Model File: " + preModel);
 
+    if (config.psWorkers > 0 && (config.hogwild || config.streamExamples))
+      throw new IllegalArgumentException("psWorkers cannot be combined with hogwild or streamExamples");
+
     List<CoreMap> trainSents = new ArrayList<>();
     List<DependencyTree> trainTrees = new ArrayList<>();
     Util.loadConllFile(trainFile, trainSents, trainTrees, config.unlabeled, config.cPOS);
@@ -676,15 +830,42 @@ public class DependencyParser  {
       Util.loadConllFile(devFile, devSents, devTrees, config.unlabeled, config.cPOS);
       Util.printTreeStats("Dev", devTrees);
     }
-    genDictionaries(trainSents, trainTrees);
+
+    String checkpointFile = config.checkpointFile != null ? config.checkpointFile : modelFile + ".ckpt";
+    Checkpoint checkpoint = null;
+    if (config.resume) {
+      checkpoint = Checkpoint.read(checkpointFile);
+      if (checkpoint == null)
+        log.info("No checkpoint found at " + checkpointFile + ", training from scratch");
+    }
+
+    if (checkpoint != null) {
+      log.info(Config.SEPARATOR);
+      log.info("Resuming from " + checkpointFile + " at iteration " + checkpoint.iteration);
+      knownWords = checkpoint.knownWords;
+      knownPos = checkpoint.knownPos;
+      knownLabels = checkpoint.knownLabels;
+      generateIDs();
+    } else {
+      genDictionaries(trainSents, trainTrees);
+    }
 
     //NOTE: remove -NULL-, and the pass it to ParsingSystem
     List<String> lDict = new ArrayList<>(knownLabels);
     lDict.remove(0);
     system = new ArcStandard(config.tlp, lDict, true);
 
+    int firstIteration = checkpoint != null ? checkpoint.iteration : 0;
+    if (config.psWorkers > 0) {
+      parameterServer = new ParameterServer(config);
+      parameterServer.launch(trainFile, knownWords, knownPos, knownLabels, firstIteration);
+    }
+
     // Initialize a classifier; prepare for training
-    setupClassifierForTraining(trainSents, trainTrees, embedFile, preModel);
+    if (checkpoint != null)
+      setupClassifierForResume(trainSents, trainTrees, checkpoint);
+    else
+      setupClassifierForTraining(trainSents, trainTrees, embedFile, preModel);
 
     log.info(Config.SEPARATOR);
     config.printParameters();
@@ -693,34 +874,65 @@ public class DependencyParser  {
     /**
      * Track the best UAS performance we've seen.
      */
-    double bestUAS = 0;
-
-    for (int iter = 0; iter < config.maxIter; ++iter) {
+    double bestUAS = checkpoint != null ? checkpoint.bestUAS : 0;
+
+    // With asyncEval, evaluations run one at a time on a background
+    // thread, each on a snapshot of the weights
+    ExecutorService evalExecutor = config.asyncEval && devFile != null
+        ? Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "dev-evaluation");
+            t.setDaemon(true);
+            return t;
+          })
+        : null;
+    Future<Double> pendingEval = CompletableFuture.completedFuture(bestUAS);
+
+    // Likewise, checkpoints are written one at a time in the background
+    ExecutorService checkpointExecutor = config.checkpointPerIter > 0
+        ? Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint-writer");
+            t.setDaemon(true);
+            return t;
+          })
+        : null;
+    Future<?> pendingCheckpoint = CompletableFuture.completedFuture(null);
+
+    for (int iter = firstIteration; iter < config.maxIter; ++iter) {
       log.info("##### Iteration " + iter);
 
-      Classifier.Cost cost = classifier.computeCostFunction(config.batchSize, config.regParameter, config.dropProb);
-      log.info("Cost = " + cost.getCost() + ", Correct(%) = " + cost.getPercentCorrect());
-      classifier.takeAdaGradientStep(cost, config.adaAlpha, config.adaEps);
+      Dataset batch = exampleStream == null ? null : exampleStream.take();
+      if (parameterServer != null) {
+        parameterServer.trainRound();
+      } else if (config.hogwild) {
+        Classifier.Cost cost = batch == null
+            ? classifier.trainHogwild(config.batchSize, config.regParameter, config.dropProb, config.adaAlpha,
+                config.adaEps)
+            : classifier.trainHogwild(batch, config.regParameter, config.dropProb, config.adaAlpha, config.adaEps);
+        log.info("Cost = " + cost.getCost() + ", Correct(%) = " + cost.getPercentCorrect());
+      } else {
+        Classifier.Cost cost = batch == null
+            ? classifier.computeCostFunction(config.batchSize, config.regParameter, config.dropProb)
+            : classifier.computeCostFunction(batch, config.regParameter, config.dropProb);
+        log.info("Cost = " + cost.getCost() + ", Correct(%) = " + cost.getPercentCorrect());
+        classifier.takeAdaGradientStep(cost, config.adaAlpha, config.adaEps);
+      }
+      if (batch != null)
+        exampleStream.recycle(batch);
 
       log.info("Elapsed Time: " + (System.currentTimeMillis() - startTime) / 1000.0 + " (s)");
 
       // UAS evaluation
       if (devFile != null && iter % config.evalPerIter == 0) {
-        // Redo precomputation with updated weights. This is only
-        // necessary because we're updating weights -- for normal
-        // prediction, we just do this once in #initialize
-        classifier.preCompute();
-
-        List<DependencyTree> predicted = devSents.stream().map(this::predictInner).collect(toList());
-
-        double uas = config.noPunc ? system.getUASnoPunc(devSents, predicted, devTrees) : system.getUAS(devSents, predicted, devTrees);
-        log.info("UAS: " + uas);
-
-        if (config.saveIntermediate && uas > bestUAS) {
-          System.err.printf("Exceeds best previous UAS of %f. Saving model file..%n", bestUAS);
-
-          bestUAS = uas;
-          writeModelFile(modelFile);
+        if (config.asyncEval) {
+          // Keep at most one evaluation in flight, so that snapshots
+          // don't pile up if evaluating is slower than training
+          bestUAS = await(pendingEval);
+          DependencyParser snapshot = snapshot();
+          int evalIter = iter;
+          double best = bestUAS;
+          pendingEval = evalExecutor.submit(() -> snapshot.evaluate(evalIter, devSents, devTrees, modelFile, best));
+        } else {
+          bestUAS = evaluate(iter, devSents, devTrees, modelFile, bestUAS);
         }
       }
 
@@ -729,14 +941,44 @@ public class DependencyParser  {
         log.info("Clearing gradient histories..");
         classifier.clearGradientHistories();
       }
+
+      if (checkpointExecutor != null && (iter + 1) % config.checkpointPerIter == 0) {
+        // The checkpoint's best UAS must account for the evaluation in
+        // flight, which may have saved a better model
+        if (evalExecutor != null)
+          bestUAS = await(pendingEval);
+        await(pendingCheckpoint);
+        Checkpoint next = new Checkpoint(iter + 1, bestUAS, Util.getRandomState(), knownWords, knownPos,
+            knownLabels, preComputed, classifier.trainingState());
+        pendingCheckpoint = checkpointExecutor.submit(() -> next.write(checkpointFile));
+      }
     }
 
+    if (exampleStream != null) {
+      exampleStream.close();
+      exampleStream = null;
+    }
+    if (parameterServer != null) {
+      parameterServer.close();
+      parameterServer = null;
+    }
+    if (evalExecutor != null) {
+      bestUAS = await(pendingEval);
+      evalExecutor.shutdown();
+    }
+    if (checkpointExecutor != null) {
+      await(pendingCheckpoint);
+      checkpointExecutor.shutdown();
+    }
     classifier.finalizeTraining();
 
     if (devFile != null) {
       // Do final UAS evaluation and save if final model beats the
-      // best intermediate one
-      List<DependencyTree> predicted = devSents.stream().map(this::predictInner).collect(toList());
+      // best intermediate one. Activations pre-computed during the
+      // last iterations cover only their mini-batches, and predate
+      // the last update.
+      classifier.preCompute();
+      List<DependencyTree> predicted = predictInner(devSents);
       double uas = config.noPunc ? system.getUASnoPunc(devSents, predicted, devTrees) : system.getUAS(devSents, predicted, devTrees);
 
       if (uas > bestUAS) {
@@ -750,6 +992,55 @@ public class DependencyParser  {
     }
   }
 
+  /**
+   * Parse the dev set with the current weights, log the UAS and, if it
+   * beats {@code bestUAS} and {@link Config#saveIntermediate} is set,
+   * save the model.
+   *
+   * @return The new best UAS
+   */
+  private double evaluate(int iter, List<CoreMap> devSents, List<DependencyTree> devTrees, String modelFile,
+                          double bestUAS) {
+    // Redo precomputation with updated weights. This is only
+    // necessary because we're updating weights -- for normal
+    // prediction, we just do this once in #initialize
+    classifier.preCompute();
+
+    List<DependencyTree> predicted = predictInner(devSents);
+
+    double uas = config.noPunc ? system.getUASnoPunc(devSents, predicted, devTrees) : system.getUAS(devSents, predicted, devTrees);
+    if (config.asyncEval)
+      log.info("UAS at iteration " + iter + ": " + uas);
+    else
+      log.info("UAS: " + uas);
+
+    if (config.saveIntermediate && uas > bestUAS) {
+      System.err.printf("Exceeds best previous UAS of %f. Saving model file..%n", bestUAS);
+
+      bestUAS = uas;
+      writeModelFile(modelFile);
+    }
+    return bestUAS;
+  }
+
+  /**
+   * Wait for a background evaluation or checkpoint to finish.
+   *
+   * @return The result of the task, e.g. the best UAS after an
+   *         evaluation
+   */
+  private static <T> T await(Future<T> task) {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      throw new RuntimeInterruptedException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
   /**
   * @see #train(String, String, String, String, String)
   */
@@ -907,8 +1198,123 @@ public class DependencyParser  {
           throw new RuntimeIOException(e);
         }
     }
-    Dataset trainSet = genTrainExamples(trainSents, trainTrees);
-    classifier = new Classifier(config, trainSet, E, W1, b1, W2, preComputed);
+    setupClassifier(trainSents, trainTrees, E, W1, b1, W2, null);
+  }
+
+  /**
+   * Prepare a classifier to continue the training run saved in
+   * {@code checkpoint}, whose dictionaries and parsing system are
+   * already in place.
+   */
+  private void setupClassifierForResume(List<CoreMap> trainSents, List<DependencyTree> trainTrees,
+                                        Checkpoint checkpoint) {
+    Classifier.TrainingState state = checkpoint.classifier;
+    if (state.E.length != knownWords.size() + knownPos.size() + knownLabels.size()
+        || state.E[0].length != config.embeddingSize
+        || state.W1.length != config.hiddenSize || state.W1[0].length != config.embeddingSize * config.numTokens
+        || state.W2.length != system.numTransitions())
+      throw new IllegalArgumentException("Checkpoint does not match the configured network dimensions");
+
+    setupClassifier(trainSents, trainTrees, state.E, state.W1, state.b1, state.W2, checkpoint.preComputed);
+    classifier.restoreTrainingState(state);
+
+    // Last, so that setting up examples doesn't draw from the restored
+    // generator
+    Util.setRandomState(checkpoint.randomState);
+  }
+
+  /**
+   * Set up the training examples and a classifier with the given
+   * weights to train on them.
+   *
+   * @param preComputed Features whose hidden layer activations are
+   *                    pre-computed, or {@code null} to choose the most
+   *                    frequent ones among the examples
+   */
+  private void setupClassifier(List<CoreMap> trainSents, List<DependencyTree> trainTrees, double[][] E,
+                               double[][] W1, double[] b1, double[][] W2, List<Integer> preComputed) {
+    Dataset trainSet;
+    if (parameterServer != null) {
+      // The workers generate and keep the examples
+      this.preComputed = choosePreComputed(parameterServer.collectFeatureCounts());
+      trainSet = new Dataset(config.numTokens, system.numTransitions());
+    } else if (config.streamExamples) {
+      log.info(Config.SEPARATOR);
+      log.info("Streaming training examples on " + config.streamThreads + " thread(s)...");
+      exampleStream = new ExampleStream(this, system, trainSents, trainTrees, config.batchSize,
+          config.streamThreads, config.streamQueueSize, config.offHeapExamples);
+      this.preComputed = choosePreComputed(exampleStream.peek());
+
+      // Mini-batches come from the stream, so the classifier's own
+      // dataset stays empty
+      trainSet = new Dataset(config.numTokens, system.numTransitions());
+    } else {
+      trainSet = genTrainExamples(trainSents, trainTrees);
+    }
+    if (preComputed != null)
+      this.preComputed = preComputed;
+    classifier = new Classifier(config, trainSet, E, W1, b1, W2, this.preComputed);
+    if (parameterServer != null)
+      parameterServer.start(classifier, this.preComputed);
+  }
+
+  /**
+   * Train as one of the {@link Config#psWorkers} processes of the
+   * parameter server at {@code address}, until the gradients of the
+   * last iteration have been sent.
+   */
+  static void trainWorker(String address) {
+    try (ParameterServer.Client server = new ParameterServer.Client(address)) {
+      new DependencyParser(server.properties).trainShard(server);
+    }
+  }
+
+  private void trainShard(ParameterServer.Client server) {
+    List<CoreMap> sents = new ArrayList<>();
+    List<DependencyTree> trees = new ArrayList<>();
+    Util.loadConllFile(server.trainFile, sents, trees, config.unlabeled, config.cPOS);
+    List<CoreMap> shardSents = new ArrayList<>();
+    List<DependencyTree> shardTrees = new ArrayList<>();
+    for (int i = server.shard; i < sents.size(); i += server.numShards) {
+      shardSents.add(sents.get(i));
+      shardTrees.add(trees.get(i));
+    }
+    sents = null;
+    trees = null;
+
+    knownWords = server.knownWords;
+    knownPos = server.knownPos;
+    knownLabels = server.knownLabels;
+    generateIDs();
+    List<String> lDict = new ArrayList<>(knownLabels);
+    lDict.remove(0);
+    system = new ArcStandard(config.tlp, lDict, true);
+
+    log.info("Parameter-server worker " + server.shard + " of " + server.numShards + ": "
+        + shardSents.size() + " sentences");
+    IntIntMap featureCounts = new IntIntMap(config.numPreComputed);
+    Dataset shard = genTrainExamples(shardSents, shardTrees, featureCounts);
+    preComputed = server.exchangeFeatureCounts(featureCounts);
+
+    // The weights arrive from the server before each step
+    double[][] E = new double[knownWords.size() + knownPos.size() + knownLabels.size()][config.embeddingSize];
+    double[][] W1 = new double[config.hiddenSize][config.embeddingSize * config.numTokens];
+    double[] b1 = new double[config.hiddenSize];
+    double[][] W2 = new double[system.numTransitions()][config.hiddenSize];
+    classifier = new Classifier(config, shard, E, W1, b1, W2, preComputed);
+
+    // As with the training threads, the first (batchSize % numShards)
+    // shards take one extra example. Synchronous gradients are summed
+    // by the server, so they average over the whole mini-batch.
+    int numExamples = config.batchSize / server.numShards
+        + (server.shard < config.batchSize % server.numShards ? 1 : 0);
+    int gradientBatchSize = config.psStaleness == 0 ? config.batchSize : numExamples;
+    for (int iter = server.firstStep; iter < config.maxIter; ++iter) {
+      int[] rows = classifier.sampleRemoteBatch(numExamples);
+      server.pull(iter, rows, classifier);
+      server.push(iter, classifier.computeRemoteCost(gradientBatchSize, config.dropProb));
+    }
+    classifier.finalizeTraining();
   }
 
   /**
@@ -918,27 +1324,168 @@ public class DependencyParser  {
    * for general parsing purposes.
    */
   private DependencyTree predictInner(CoreMap sentence) {
-    int numTrans = system.numTransitions();
+    return predictInner(Collections.singletonList(sentence), newWorkspace(1)).get(0);
+  }
+
+  /**
+   * Determine the dependency parses of the given sentences.
+   * <p>
+   * Sentences are grouped into batches of {@link Config#parseBatchSize}
+   * sentences of similar length, and each batch is advanced in
+   * lockstep: at every step, the feature vectors of all unfinished
+   * configurations are scored by the classifier at once. With
+   * {@link Config#parseThreads} above one, batches are parsed in
+   * parallel. Parses are returned in input order.
+   */
+  private List<DependencyTree> predictInner(List<CoreMap> sentences) {
+    // Calibration records activations in shared state
+    if (config.parseThreads > 1 && !classifier.isCalibrating())
+      return predictInnerParallel(sentences);
+    return predictInner(sentences, newWorkspace());
+  }
+
+  /**
+   * Parse the given sentences in lockstep batches of up to
+   * {@code workspace.capacity()} sentences, using the workspace's
+   * buffers for all per-step state.
+   */
+  List<DependencyTree> predictInner(List<CoreMap> sentences, ParserWorkspace workspace) {
+    Integer[] order = sortByLength(sentences);
+    DependencyTree[] trees = new DependencyTree[sentences.size()];
+    for (int start = 0; start < order.length; start += workspace.capacity())
+      predictBatch(sentences, order, start, Math.min(start + workspace.capacity(), order.length), workspace, trees);
+    return Arrays.asList(trees);
+  }
+
+  /**
+   * Parse the given sentences on the {@link Config#parseThreads}-thread
+   * pool. Each worker thread keeps its own workspace; the classifier
+   * is only read. Batches are made small enough to give every thread
+   * several, and the longest are submitted first so that the pool
+   * drains evenly.
+   */
+  private List<DependencyTree> predictInnerParallel(List<CoreMap> sentences) {
+    Integer[] order = sortByLength(sentences);
+    DependencyTree[] trees = new DependencyTree[sentences.size()];
+
+    int threads = config.parseThreads;
+    int batchSize = Math.max(1, Math.min(config.parseBatchSize, (order.length + 4 * threads - 1) / (4 * threads)));
+    ThreadLocal<ParserWorkspace> workspaces = ThreadLocal.withInitial(() -> newWorkspace(batchSize));
+
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int start = (order.length - 1) / batchSize * batchSize; start >= 0; start -= batchSize) {
+      int batchStart = start;
+      int batchEnd = Math.min(start + batchSize, order.length);
+      tasks.add(() -> {
+        predictBatch(sentences, order, batchStart, batchEnd, workspaces.get(), trees);
+        return null;
+      });
+    }
+
+    try {
+      for (Future<Void> result : parsePool().invokeAll(tasks))
+        result.get();
+    } catch (InterruptedException e) {
+      throw new RuntimeInterruptedException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+    return Arrays.asList(trees);
+  }
+
+  /**
+   * @return Fork-join pool of {@link Config#parseThreads} threads,
+   *         created on first use
+   */
+  private synchronized ForkJoinPool parsePool() {
+    if (parsePool == null)
+      parsePool = new ForkJoinPool(config.parseThreads);
+    return parsePool;
+  }
+
+  /**
+   * @return Indices of the given sentences, shortest sentence first
+   */
+  private static Integer[] sortByLength(List<CoreMap> sentences) {
+    Integer[] order = new Integer[sentences.size()];
+    for (int i = 0; i < order.length; ++i)
+      order[i] = i;
+    Arrays.sort(order, Comparator.comparingInt(i -> sentences.get(i).get(CoreAnnotations.TokensAnnotation.class).size()));
+    return order;
+  }
+
+  /**
+   * Parse sentences {@code order[start]} to {@code order[end - 1]} in
+   * lockstep and store their trees at their input positions.
+   */
+  private void predictBatch(List<CoreMap> sentences, Integer[] order, int start, int end,
+                            ParserWorkspace workspace, DependencyTree[] trees) {
+    Configuration[] configurations = workspace.configurations;
+    for (int i = start; i < end; ++i)
+      configurations[i - start] = system.initialConfiguration(sentences.get(order[i]));
+
+    predictLockstep(workspace, end - start);
 
-    Configuration c = system.initialConfiguration(sentence);
-    while (!system.isTerminal(c)) {
+    for (int i = start; i < end; ++i) {
+      trees[order[i]] = configurations[i - start].tree;
+      configurations[i - start] = null;
+    }
+  }
+
+  /**
+   * Run the first {@code numConfigurations} configurations of the
+   * workspace to completion, choosing the next transition for every
+   * unfinished configuration from one batched classifier call per step.
+   * Only legal transitions are scored. Nothing is allocated per step.
+   */
+  void predictLockstep(ParserWorkspace workspace, int numConfigurations) {
+    Configuration[] configurations = workspace.configurations;
+    int[] active = workspace.active;
+    int[][] features = workspace.features;
+    boolean[][] legal = workspace.legal;
+    int[] best = workspace.best;
+
+    int numActive = 0;
+    for (int i = 0; i < numConfigurations; ++i)
+      if (!system.isTerminal(configurations[i]))
+        active[numActive++] = i;
+
+    while (numActive > 0) {
       if (Thread.interrupted()) {  // Allow interrupting
         throw new RuntimeInterruptedException();
       }
-      double[] scores = classifier.computeScores(getFeatureArray(c));
 
-      double optScore = Double.NEGATIVE_INFINITY;
-      String optTrans = null;
+      for (int a = 0; a < numActive; ++a) {
+        getFeatureArray(configurations[active[a]], features[a]);
+        system.legalTransitions(configurations[active[a]], legal[a]);
+      }
+      classifier.argmaxScores(workspace, numActive);
+
+      int stillActive = 0;
+      for (int a = 0; a < numActive; ++a) {
+        Configuration c = configurations[active[a]];
+        system.apply(c, best[a]);
 
-      for (int j = 0; j < numTrans; ++j) {
-        if (scores[j] > optScore && system.canApply(c, system.transitions.get(j))) {
-          optScore = scores[j];
-          optTrans = system.transitions.get(j);
-        }
+        if (!system.isTerminal(c))
+          active[stillActive++] = active[a];
       }
-      system.apply(c, optTrans);
+      numActive = stillActive;
     }
-    return c.tree;
+  }
+
+  /**
+   * Create scratch buffers for parsing {@link Config#parseBatchSize}
+   * sentences at a time with this parser. The parser must be loaded
+   * and initialized.
+   */
+  ParserWorkspace newWorkspace() {
+    return newWorkspace(Math.max(1, config.parseBatchSize));
+  }
+
+  private ParserWorkspace newWorkspace(int batchSize) {
+    return new ParserWorkspace(batchSize, config.numTokens, system.numTransitions(), config.hiddenSize);
   }
 
   /**
@@ -954,11 +1501,37 @@ public class DependencyParser  {
           "loaded and initialized; first load a model.");
 
     DependencyTree result = predictInner(sentence);
+    return toGrammaticalStructure(sentence, result);
+  }
 
-    // The rest of this method is just busy-work to convert the
-    // package-local representation into a CoreNLP-standard
-    // GrammaticalStructure.
+  /**
+   * Determine the dependency parses of many sentences using the loaded
+   * model. This is faster than calling
+   * {@link #predict(edu.stanford.nlp.util.CoreMap)} on each sentence,
+   * as the sentences are parsed in lockstep batches (see
+   * {@link Config#parseBatchSize}).
+   *
+   * @throws java.lang.IllegalStateException If parser has not yet been loaded and initialized
+   *         (see {@link #initialize(boolean)}
+   */
+  public List<GrammaticalStructure> predictBatch(List<CoreMap> sentences) {
+    if (system == null)
+      throw new IllegalStateException("Parser has not been  " +
+          "loaded and initialized; first load a model.");
+
+    List<DependencyTree> results = predictInner(sentences);
+
+    List<GrammaticalStructure> structures = new ArrayList<>(sentences.size());
+    for (int i = 0; i < sentences.size(); ++i)
+      structures.add(toGrammaticalStructure(sentences.get(i), results.get(i)));
+    return structures;
+  }
 
+  /**
+   * Convert the package-local representation of a parse into a
+   * CoreNLP-standard GrammaticalStructure.
+   */
+  private GrammaticalStructure toGrammaticalStructure(CoreMap sentence, DependencyTree result) {
     List<CoreLabel> tokens = sentence.get(CoreAnnotations.TokensAnnotation.class);
     List<TypedDependency> dependencies = new ArrayList<>();
 
@@ -1028,6 +1601,13 @@ public class DependencyParser  {
    * @see #predict(edu.stanford.nlp.util.CoreMap)
    */
   public GrammaticalStructure predict(List<? extends HasWord> sentence) {
+    return predict(toCoreMap(sentence));
+  }
+
+  /**
+   * Wrap a list of tagged words as a sentence the parser can consume.
+   */
+  private static CoreMap toCoreMap(List<? extends HasWord> sentence) {
     CoreLabel sentenceLabel = new CoreLabel();
     List<CoreLabel> tokens = new ArrayList<>();
 
@@ -1059,7 +1639,7 @@ public class DependencyParser  {
 
     sentenceLabel.set(CoreAnnotations.TokensAnnotation.class, tokens);
 
-    return predict(sentenceLabel);
+    return sentenceLabel;
   }
 
   //TODO: support sentence-only files as input
@@ -1093,7 +1673,7 @@ public class DependencyParser  {
     }
     System.err.printf("OOV Words: %d / %d = %.2f%%\n", numOOVWords, numWords, numOOVWords * 100.0 / numWords);
 
-    List<DependencyTree> predicted = testSents.stream().map(this::predictInner).collect(toList());
+    List<DependencyTree> predicted = predictInner(testSents);
     Map<String, Double> result = system.evaluate(testSents, predicted, testTrees);
 
     double uas = config.noPunc ? result.get("UASnoPunc") : result.get("UAS");
@@ -1132,7 +1712,7 @@ public class DependencyParser  {
       }
     }
     System.err.printf("OOV Words: %d / %d = %.2f%%\n", numOOVWords, numWords, numOOVWords * 100.0 / numWords);
-    List<DependencyTree> predicted = testSents.stream().map(this::predictInner).collect(toList());
+    List<DependencyTree> predicted = predictInner(testSents);
     if (outFile != null) {
         Util.writeConllFile(outFile, testSents, predicted);
     }
@@ -1158,10 +1738,12 @@ public class DependencyParser  {
 
     timer.start();
 
-    int numSentences = 0;
-    for (List<TaggedWord> taggedSentence : tagged) {
-      GrammaticalStructure parse = predict(taggedSentence);
+    List<CoreMap> sentences = new ArrayList<>(tagged.size());
+    for (List<TaggedWord> taggedSentence : tagged)
+      sentences.add(toCoreMap(taggedSentence));
 
+    int numSentences = 0;
+    for (GrammaticalStructure parse : predictBatch(sentences)) {
       Collection<TypedDependency> deps = parse.typedDependencies();
       for (TypedDependency dep : deps)
         output.println(dep);
@@ -1189,10 +1771,55 @@ public class DependencyParser  {
 
     system = new ArcStandard(config.tlp, lDict, verbose);
 
-    // Pre-compute matrix multiplications
-    if (config.numPreComputed > 0) {
+    // Pre-compute matrix multiplications. In lazy mode the classifier
+    // fills its cache while parsing instead; quantization still needs
+    // the full table.
+    if (config.numPreComputed > 0 && (!config.lazyPreCompute || config.quantize)) {
       classifier.preCompute();
     }
+
+    // POS and label IDs follow the word IDs; see #generateIDs
+    if (config.exhaustivePreCompute) {
+      int firstPos = knownWords.size();
+      int firstLabel = firstPos + knownPos.size();
+      classifier.preComputeDense(POS_OFFSET, DEP_OFFSET, firstPos, knownPos.size());
+      classifier.preComputeDense(DEP_OFFSET, config.numTokens, firstLabel, knownLabels.size());
+    }
+
+    if (config.quantize)
+      quantizeClassifier();
+  }
+
+  /**
+   * Calibrate activation ranges on {@link Config#calibrationFile},
+   * switch the classifier to int8-quantized inference and report the
+   * resulting change in UAS / LAS on the calibration data.
+   */
+  private void quantizeClassifier() {
+    if (config.calibrationFile == null)
+      throw new IllegalArgumentException("Quantized inference requires a calibrationFile");
+
+    log.info("Calibration File: " + config.calibrationFile);
+    List<CoreMap> calibSents = new ArrayList<>();
+    List<DependencyTree> calibTrees = new ArrayList<>();
+    Util.loadConllFile(config.calibrationFile, calibSents, calibTrees, config.unlabeled, config.cPOS);
+
+    classifier.startCalibration();
+    List<DependencyTree> predicted = predictInner(calibSents);
+    double[] activationRange = classifier.finishCalibration();
+    Map<String, Double> result = system.evaluate(calibSents, predicted, calibTrees);
+
+    long quantizedBytes = classifier.quantize(activationRange);
+    List<DependencyTree> quantPredicted = predictInner(calibSents);
+    Map<String, Double> quantResult = system.evaluate(calibSents, quantPredicted, calibTrees);
+
+    String uasKey = config.noPunc ? "UASnoPunc" : "UAS";
+    String lasKey = config.noPunc ? "LASnoPunc" : "LAS";
+    System.err.printf("Quantized model: %.1f MB%n", quantizedBytes / (1024.0 * 1024.0));
+    System.err.printf("UAS = %.4f (full precision %.4f, delta %+.4f)%n",
+        quantResult.get(uasKey), result.get(uasKey), quantResult.get(uasKey) - result.get(uasKey));
+    System.err.printf("LAS = %.4f (full precision %.4f, delta %+.4f)%n",
+        quantResult.get(lasKey), result.get(lasKey), quantResult.get(lasKey) - result.get(lasKey));
   }
 
   /**
@@ -1203,6 +1830,7 @@ public class DependencyParser  {
   static {
     numArgs.put("textFile", 1);
     numArgs.put("outFile", 1);
+    numArgs.put("psJvmOptions", 1);
   }
 
   /**
@@ -1249,32 +1877,68 @@ public class DependencyParser  {
    *   <tr><th>Option</th><th>Default</th><th>Description</th></tr>
    *   <tr><td><tt>&#8209;adaAlpha</tt></td><td>0.01</td><td>Global learning rate for AdaGrad training</td></tr>
    *   <tr><td><tt>&#8209;adaEps</tt></td><td>1e-6</td><td>Epsilon value added to the denominator of AdaGrad update expression for numerical stability</td></tr>
+   *   <tr><td><tt>&#8209;asyncEval</tt></td><td>false</td><td>If <tt>true</tt>, dev-set evaluations (and the model saving they trigger) run on a background thread, on a copy of the weights, while training continues. Results are logged with the iteration they belong to. At most one evaluation runs at a time.</td></tr>
    *   <tr><td><tt>&#8209;batchSize</tt></td><td>10000</td><td>Size of mini-batch used for training</td></tr>
+   *   <tr><td><tt>&#8209;checkpointFile</tt></td><td>model file + <tt>.ckpt</tt></td><td>File to write checkpoints to and resume from.</td></tr>
+   *   <tr><td><tt>&#8209;checkpointPerIter</tt></td><td>0</td><td>Write a binary checkpoint of the training state every time we finish this number of iterations. Checkpoints are written in the background and replace each other atomically. 0 disables checkpoints.</td></tr>
    *   <tr><td><tt>&#8209;clearGradientsPerIter</tt></td><td>0</td><td>Clear AdaGrad gradient histories every <em>n</em> iterations. If zero, no gradient clearing is performed.</td></tr>
    *   <tr><td><tt>&#8209;dropProb</tt></td><td>0.5</td><td>Dropout probability. For each training example we randomly choose some amount of units to disable in the neural network classifier. This parameter controls the proportion of units "dropped out."</td></tr>
    *   <tr><td><tt>&#8209;embeddingSize</tt></td><td>50</td><td>Dimensionality of word embeddings provided</td></tr>
+   *   <tr><td><tt>&#8209;epochSampling</tt></td><td>false</td><td>If <tt>true</tt>, mini-batches walk through a shuffled order of the training examples, reshuffled after each epoch, so that every example is trained on once per epoch. By default each mini-batch is an independent random sample.</td></tr>
    *   <tr><td><tt>&#8209;evalPerIter</tt></td><td>100</td><td>Run full UAS (unlabeled attachment score) evaluation every time we finish this number of iterations. (Only valid if a development treebank is provided with <tt>&#8209;devFile</tt>.)</td></tr>
+   *   <tr><td><tt>&#8209;floatWeights</tt></td><td><tt>false</tt></td><td>If <tt>true</tt>, store pre-computed hidden-layer activations in single precision during training.</td></tr>
+   *   <tr><td><tt>&#8209;gemmBackprop</tt></td><td>false</td><td>If <tt>true</tt>, each training thread feeds its share of a mini-batch forward and backward in blocks of examples, with cache-blocked matrix products in place of per-example loops. Results agree with the default up to rounding.</td></tr>
    *   <tr><td><tt>&#8209;hiddenSize</tt></td><td>200</td><td>Dimensionality of hidden layer in neural network classifier</td></tr>
+   *   <tr><td><tt>&#8209;hogwild</tt></td><td>false</td><td>If <tt>true</tt>, each training thread updates the shared weights directly after every <tt>hogwildBatchSize</tt> examples, without locking and without merging gradients across threads. Pre-computed activations are not used in this mode.</td></tr>
+   *   <tr><td><tt>&#8209;hogwildBatchSize</tt></td><td>100</td><td>Examples per weight update of each thread in Hogwild mode.</td></tr>
    *   <tr><td><tt>&#8209;initRange</tt></td><td>0.01</td><td>Bounds of range within which weight matrix elements should be initialized. Each element is drawn from a uniform distribution over the range <tt>[-initRange, initRange]</tt>.</td></tr>
+   *   <tr><td><tt>&#8209;lazyRegularization</tt></td><td>false</td><td>If <tt>true</tt>, only the word embeddings used by a mini-batch are regularized at each step; the decay missed by the others is applied in closed form when they are next used. Makes each step cost in proportion to the embeddings used rather than the vocabulary size.</td></tr>
    *   <tr><td><tt>&#8209;maxIter</tt></td><td>20000</td><td>Number of training iterations to complete before stopping and saving the final model.</td></tr>
+   *   <tr><td><tt>&#8209;mixedPrecision</tt></td><td><tt>false</tt></td><td>If <tt>true</tt>, train with single-precision weight matrices and pre-computed activations, keeping gradients, softmax sums and AdaGrad histories in double precision. This roughly halves the memory traffic of training; the model file format is unchanged.</td></tr>
    *   <tr><td><tt>&#8209;numPreComputed</tt></td><td>100000</td><td>The parser pre-computes hidden-layer unit activations for particular inputs words at both training and testing time in order to speed up feedforward computation in the neural network. This parameter determines how many words for which we should compute hidden-layer activations.</td></tr>
+   *   <tr><td><tt>&#8209;offHeapExamples</tt></td><td>false</td><td>If <tt>true</tt>, training examples are stored outside the Java heap (in direct buffers). Direct memory is limited by <tt>-XX:MaxDirectMemorySize</tt>.</td></tr>
+   *   <tr><td><tt>&#8209;psJvmOptions</tt></td><td>N/A</td><td>JVM options for the <tt>psWorkers</tt> processes (e.g. <tt>-Xmx8g</tt>). By default, workers are started with the options of the training JVM.</td></tr>
+   *   <tr><td><tt>&#8209;psStaleness</tt></td><td>0</td><td>If 0, each step sums the gradients of all <tt>psWorkers</tt>. Otherwise each worker's gradients are applied as soon as they arrive, and a worker may run this many steps ahead of the slowest one.</td></tr>
+   *   <tr><td><tt>&#8209;psWorkers</tt></td><td>0</td><td>Number of worker processes to train on. Each generates and holds the examples of its own shard of the training sentences, and computes its share of each mini-batch on <tt>trainingThreads</tt> threads; this process keeps the weights and exchanges them with the workers over local sockets. 0 trains in this process alone.</td></tr>
    *   <tr><td><tt>&#8209;regParameter</tt></td><td>1e-8</td><td>Regularization parameter for training</td></tr>
+   *   <tr><td><tt>&#8209;resume</tt></td><td>false</td><td>If <tt>true</tt>, continue the training run saved in the checkpoint file, with the same weights, AdaGrad histories, iteration, best UAS and random generator state. Without a checkpoint, training starts from scratch.</td></tr>
    *   <tr><td><tt>&#8209;saveIntermediate</tt></td><td><tt>true</tt></td><td>If <tt>true</tt>, continually save the model version which gets the highest UAS value on the dev set. (Only valid if a development treebank is provided with <tt>&#8209;devFile</tt>.)</td></tr>
-   *   <tr><td><tt>&#8209;trainingThreads</tt></td><td>1</td><td>Number of threads to use during training. Note that depending on training batch size, it may be unwise to simply choose the maximum amount of threads for your machine. On our 16-core test machines: a batch size of 10,000 runs fastest with around 6 threads; a batch size of 100,000 runs best with around 10 threads.</td></tr>
+   *   <tr><td><tt>&#8209;simd</tt></td><td><tt>false</tt></td><td>If <tt>true</tt>, run the classifier's inner loops on Vector API kernels. The JVM must be started with <tt>--add-modules jdk.incubator.vector</tt>; otherwise scalar kernels are used.</td></tr>
+   *   <tr><td><tt>&#8209;sortMiniBatches</tt></td><td>false</td><td>If <tt>true</tt>, the examples of each mini-batch are trained on in storage order, for more sequential memory access.</td></tr>
+   *   <tr><td><tt>&#8209;streamExamples</tt></td><td>false</td><td>If <tt>true</tt>, training examples are generated on background threads as training runs, rather than all up front. Training starts at once and memory use no longer grows with the training set. Pre-computed features are chosen from the first mini-batch.</td></tr>
+   *   <tr><td><tt>&#8209;streamQueueSize</tt></td><td>4</td><td>Number of generated mini-batches that may wait for the trainer when streaming.</td></tr>
+   *   <tr><td><tt>&#8209;streamThreads</tt></td><td>1</td><td>Number of threads generating training examples when streaming.</td></tr>
+   *   <tr><td><tt>&#8209;trainingThreads</tt></td><td>1</td><td>Number of threads to use during training. Note that depending on training batch size, it may be unwise to simply choose the maximum amount of threads for your machine. On our 16-core test machines: a batch size of 10,000 runs fastest with around 6 threads; a batch size of 100,000 runs best with around 10 threads. Training examples are generated on as many threads.</td></tr>
    *   <tr><td><tt>&#8209;wordCutOff</tt></td><td>1</td><td>The parser can optionally ignore rare words by simply choosing an arbitrary "unknown" feature representation for words that appear with frequency less than <em>n</em> in the corpus. This <em>n</em> is controlled by the <tt>wordCutOff</tt> parameter.</td></tr>
    * </table>
    *
    * Runtime parsing options:
    * <table>
    *   <tr><th>Option</th><th>Default</th><th>Description</th></tr>
+   *   <tr><td><tt>&#8209;calibrationFile</tt></td><td>N/A</td><td>CoNLL-X treebank used to calibrate <tt>&#8209;quantize</tt>. Required when quantizing.</td></tr>
    *   <tr><td><tt>&#8209;escaper</tt></td><td>N/A</td><td>Only applicable for testing with <tt>-textFile</tt>. If provided, use this word-escaper when parsing raw sentences. (Should be a fully-qualified class name like <tt>edu.stanford.nlp.trees.international.arabic.ATBEscaper</tt>.)</td></tr>
+   *   <tr><td><tt>&#8209;exhaustivePreCompute</tt></td><td><tt>false</tt></td><td>If <tt>true</tt>, pre-compute hidden-layer activations for every part-of-speech tag and arc label at every position where it can occur, so only word features are looked up or computed on the fly.</td></tr>
+   *   <tr><td><tt>&#8209;floatWeights</tt></td><td><tt>false</tt></td><td>If <tt>true</tt>, hold the loaded weights and pre-computed hidden-layer activations in single precision, halving the parser's memory footprint.</td></tr>
+   *   <tr><td><tt>&#8209;lazyPreCompute</tt></td><td><tt>false</tt></td><td>If <tt>true</tt>, skip pre-computation at startup. Hidden-layer activations are computed on first use and kept in a bounded cache which favors frequent (word, position) pairs, including pairs not pre-computed at training time.</td></tr>
    *   <tr><td><tt>&#8209;numPreComputed</tt></td><td>100000</td><td>The parser pre-computes hidden-layer unit activations for particular inputs words at both training and testing time in order to speed up feedforward computation in the neural network. This parameter determines how many words for which we should compute hidden-layer activations.</td></tr>
+   *   <tr><td><tt>&#8209;parseBatchSize</tt></td><td>64</td><td>Number of sentences advanced in lockstep when parsing a whole file. The unfinished sentences of a batch are scored together at each transition.</td></tr>
+   *   <tr><td><tt>&#8209;parseThreads</tt></td><td>1</td><td>Number of threads used when parsing a whole file (test file, dev set during training, CoNLL-X or text input). Output order is unaffected.</td></tr>
+   *   <tr><td><tt>&#8209;preComputeCacheSize</tt></td><td>100000</td><td>Number of entries in the <tt>&#8209;lazyPreCompute</tt> cache.</td></tr>
+   *   <tr><td><tt>&#8209;quantize</tt></td><td><tt>false</tt></td><td>If <tt>true</tt>, parse with an int8-quantized copy of the model. Activation ranges are calibrated on <tt>&#8209;calibrationFile</tt>, and the UAS / LAS change on that data is reported. Only the quantized tables are kept in memory.</td></tr>
    *   <tr><td><tt>&#8209;sentenceDelimiter</tt></td><td>N/A</td><td>Only applicable for testing with <tt>-textFile</tt>.  If provided, assume that the given <tt>textFile</tt> has already been sentence-split, and that sentences are separated by this delimiter.</td></tr>
+   *   <tr><td><tt>&#8209;simd</tt></td><td><tt>false</tt></td><td>See training options.</td></tr>
    *   <tr><td><tt>&#8209;tagger.model</tt></td><td>edu/stanford/nlp/models/pos-tagger/english-left3words/english-left3words-distsim.tagger</td><td>Only applicable for testing with <tt>-textFile</tt>. Path to a part-of-speech tagger to use to pre-tag the raw sentences before parsing.</td></tr>
    * </table>
    */
   public static void main(String[] args) {
     Properties props = StringUtils.argsToProperties(args, numArgs);
+
+    // Train a shard for a parameter server (see Config#psWorkers)
+    if (props.containsKey("psServer")) {
+      trainWorker(props.getProperty("psServer"));
+      return;
+    }
+
     DependencyParser parser = new DependencyParser(props);
 
     // Train with CoNLL-X data
@@ -0,0 +1,199 @@
+package org.statnlp.allan.depner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Endless stream of training mini-batches, generated by replaying the
+ * oracle on background threads while the classifier trains.
+ *
+ * Producer threads take projective training sentences in a random
+ * order, reshuffled every epoch, and encode the oracle's examples into
+ * {@link Dataset}s of exactly {@code batchSize} examples (a sentence
+ * may span two batches). Finished batches wait in a bounded queue; a
+ * batch handed back with {@link #recycle(Dataset)} is refilled, so
+ * memory is bounded by the number of batches in flight rather than by
+ * the size of the corpus.
+ *
+ * @see Config#streamExamples
+ */
+final class ExampleStream implements AutoCloseable {
+
+  private final DependencyParser parser;
+  private final ParsingSystem system;
+  private final List<CoreMap> sents;
+  private final List<DependencyTree> trees;
+  private final int batchSize;
+
+  /** Indices of the projective training sentences, in epoch order */
+  private final int[] order;
+  private int nextInOrder;
+  private final Random random;
+
+  private final BlockingQueue<Dataset> full;
+  private final BlockingQueue<Dataset> free;
+  private final ExecutorService producers;
+
+  private volatile Throwable failure;
+
+  /** Batch returned by {@link #peek()} and not yet taken */
+  private Dataset head;
+
+  /**
+   * Start producing batches.
+   *
+   * @param numThreads Number of producer threads
+   * @param queueSize  Number of finished batches that may wait for the
+   *                   trainer
+   * @param offHeap    Whether batches store examples off-heap
+   */
+  ExampleStream(DependencyParser parser, ParsingSystem system, List<CoreMap> sents, List<DependencyTree> trees,
+                int batchSize, int numThreads, int queueSize, boolean offHeap) {
+    if (batchSize < 1 || numThreads < 1 || queueSize < 1)
+      throw new IllegalArgumentException("Batch size, thread count and queue size must be positive");
+
+    this.parser = parser;
+    this.system = system;
+    this.sents = sents;
+    this.trees = trees;
+    this.batchSize = batchSize;
+
+    List<Integer> projective = new ArrayList<>();
+    for (int i = 0; i < trees.size(); ++i)
+      if (trees.get(i).isProjective())
+        projective.add(i);
+    if (projective.isEmpty())
+      throw new IllegalArgumentException("No projective training trees to generate examples from");
+    order = projective.stream().mapToInt(Integer::intValue).toArray();
+    random = new Random(Util.getRandom().nextLong());
+    shuffle();
+
+    // One batch for each queue slot, one being filled by each producer
+    // and one held by the trainer
+    int numBatches = queueSize + numThreads + 1;
+    full = new ArrayBlockingQueue<>(queueSize);
+    free = new ArrayBlockingQueue<>(numBatches);
+    for (int i = 0; i < numBatches; ++i)
+      free.add(new Dataset(Config.numTokens, system.numTransitions(), offHeap));
+
+    producers = Executors.newFixedThreadPool(numThreads, r -> {
+      Thread t = new Thread(r, "example-producer");
+      t.setDaemon(true);
+      return t;
+    });
+    for (int t = 0; t < numThreads; ++t)
+      producers.execute(this::produce);
+  }
+
+  private void shuffle() {
+    for (int i = order.length - 1; i > 0; --i) {
+      int j = random.nextInt(i + 1);
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+  }
+
+  /**
+   * @return Index of the next training sentence to replay
+   */
+  private synchronized int nextSentence() {
+    if (nextInOrder == order.length) {
+      shuffle();
+      nextInOrder = 0;
+    }
+    return order[nextInOrder++];
+  }
+
+  private void produce() {
+    int[] feature = new int[Config.numTokens];
+    int[] label = new int[system.numTransitions()];
+    Configuration c = null;
+    DependencyTree gold = null;
+
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        Dataset batch = free.take();
+        batch.clear();
+        while (batch.n < batchSize) {
+          if (c == null || system.isTerminal(c)) {
+            int i = nextSentence();
+            c = system.initialConfiguration(sents.get(i));
+            gold = trees.get(i);
+            continue;
+          }
+          String oracle = parser.encodeExample(c, gold, feature, label);
+          batch.addExample(feature, label);
+          system.apply(c, oracle);
+        }
+        full.put(batch);
+      }
+    } catch (InterruptedException e) {
+      // Closed
+    } catch (RuntimeException | Error e) {
+      failure = e;
+    }
+  }
+
+  /**
+   * Wait for the next batch. Like {@link #peek()}, this may only be
+   * called from the training thread. Hand the batch back with
+   * {@link #recycle(Dataset)} once it is no longer needed.
+   *
+   * @throws java.lang.IllegalStateException If a producer has failed
+   */
+  Dataset take() {
+    if (head != null) {
+      Dataset batch = head;
+      head = null;
+      return batch;
+    }
+
+    try {
+      while (true) {
+        if (failure != null)
+          throw new IllegalStateException("Training example producer failed", failure);
+        Dataset batch = full.poll(1, TimeUnit.SECONDS);
+        if (batch != null)
+          return batch;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for training examples", e);
+    }
+  }
+
+  /**
+   * Wait for the next batch, but leave it to be returned by the next
+   * call to {@link #take()}.
+   */
+  Dataset peek() {
+    if (head == null)
+      head = take();
+    return head;
+  }
+
+  /**
+   * Return a batch obtained from {@link #take()} for refilling.
+   */
+  void recycle(Dataset batch) {
+    free.add(batch);
+  }
+
+  /**
+   * Stop the producer threads.
+   */
+  @Override
+  public void close() {
+    producers.shutdownNow();
+  }
+
+}
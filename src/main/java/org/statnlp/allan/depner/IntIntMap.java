@@ -0,0 +1,192 @@
+package org.statnlp.allan.depner;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from non-negative {@code int} keys to
+ * non-negative {@code int} values.
+ *
+ * The classifier looks up every input feature in its pre-computation
+ * index on every feedforward pass; this map serves those lookups
+ * without boxing or allocation. Collisions are resolved by linear
+ * probing, and the table is kept at most half full.
+ *
+ * @see Classifier
+ */
+final class IntIntMap {
+
+  /** Marks an unused slot, and is returned by {@link #get(int)} for absent keys. */
+  static final int NONE = -1;
+
+  private int[] keys;
+  private int[] values;
+  private int mask;
+  private int size;
+
+  IntIntMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    values = new int[capacity];
+    Arrays.fill(keys, NONE);
+    mask = capacity - 1;
+  }
+
+  private int slot(int key) {
+    int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  /**
+   * @return The value stored for {@code key}, or {@link #NONE} if the
+   *         key is absent
+   */
+  int get(int key) {
+    for (int i = slot(key); ; i = (i + 1) & mask) {
+      int k = keys[i];
+      if (k == key)
+        return values[i];
+      if (k == NONE)
+        return NONE;
+    }
+  }
+
+  boolean containsKey(int key) {
+    return get(key) != NONE;
+  }
+
+  /**
+   * Associate {@code value} with {@code key}, replacing any previous
+   * value.
+   *
+   * @throws java.lang.IllegalArgumentException If the key or value is
+   *                                            negative
+   */
+  void put(int key, int value) {
+    if (key < 0 || value < 0)
+      throw new IllegalArgumentException("Keys and values must be non-negative: " + key + " -> " + value);
+
+    for (int i = slot(key); ; i = (i + 1) & mask) {
+      int k = keys[i];
+      if (k == key) {
+        values[i] = value;
+        return;
+      }
+      if (k == NONE) {
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length)
+          rehash();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Add {@code delta} to the value of {@code key}, treating an absent
+   * key as zero. This makes the map usable as a counter.
+   */
+  void add(int key, int delta) {
+    for (int i = slot(key); ; i = (i + 1) & mask) {
+      int k = keys[i];
+      if (k == key) {
+        values[i] += delta;
+        return;
+      }
+      if (k == NONE) {
+        put(key, delta);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Add every value of {@code other} to the value of the same key here.
+   */
+  void addAll(IntIntMap other) {
+    for (int i = 0; i < other.keys.length; i++)
+      if (other.keys[i] != NONE)
+        add(other.keys[i], other.values[i]);
+  }
+
+  /**
+   * Select the {@code k} keys with the largest values with a bounded
+   * min-heap, in O(size log k) time rather than by sorting all entries.
+   *
+   * @return Up to {@code k} keys, largest value first; keys with equal
+   *         values are ordered smallest key first
+   */
+  int[] topKeys(int k) {
+    k = Math.min(k, size);
+    if (k <= 0)
+      return new int[0];
+
+    // Each entry is packed so that a larger long is a better entry:
+    // value in the high half, and the complement of the key below it
+    // so that smaller keys win ties
+    long[] heap = new long[k];
+    int heapSize = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] == NONE)
+        continue;
+      long entry = ((long) values[i] << 32) | (Integer.MAX_VALUE - keys[i]);
+      if (heapSize < k) {
+        int j = heapSize++;
+        while (j > 0 && heap[(j - 1) / 2] > entry) {
+          heap[j] = heap[(j - 1) / 2];
+          j = (j - 1) / 2;
+        }
+        heap[j] = entry;
+      } else if (entry > heap[0]) {
+        int j = 0;
+        while (true) {
+          int child = 2 * j + 1;
+          if (child >= k)
+            break;
+          if (child + 1 < k && heap[child + 1] < heap[child])
+            child++;
+          if (heap[child] >= entry)
+            break;
+          heap[j] = heap[child];
+          j = child;
+        }
+        heap[j] = entry;
+      }
+    }
+
+    Arrays.sort(heap);
+    int[] result = new int[k];
+    for (int i = 0; i < k; i++)
+      result[i] = Integer.MAX_VALUE - (int) heap[k - 1 - i];
+    return result;
+  }
+
+  private void rehash() {
+    int[] oldKeys = keys, oldValues = values;
+    allocate(oldKeys.length * 2);
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++)
+      if (oldKeys[i] != NONE)
+        put(oldKeys[i], oldValues[i]);
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return A new array of all keys in this map, in no particular order
+   */
+  int[] keys() {
+    int[] result = new int[size];
+    int n = 0;
+    for (int k : keys)
+      if (k != NONE)
+        result[n++] = k;
+    return result;
+  }
+
+}
@@ -0,0 +1,64 @@
+package org.statnlp.allan.depner;
+
+/**
+ * Dense vector primitives behind the feedforward and backpropagation
+ * loops of the neural network classifiers.
+ *
+ * All operations work on {@code n} consecutive elements of flat arrays
+ * starting at the given offsets, so they apply equally to rows of 2d
+ * weight matrices and to row-major flat storage. Products involving
+ * {@code float} inputs are accumulated in double precision.
+ *
+ * Two implementations exist: {@link ScalarKernels}, which is plain
+ * Java, and {@code VectorApiKernels}, which uses the incubating
+ * {@code jdk.incubator.vector} API. The latter is only present when
+ * the project is built on JDK 16+ and only usable when the JVM runs
+ * with {@code --add-modules jdk.incubator.vector}.
+ *
+ * @see #create(boolean)
+ */
+public interface Kernels {
+
+  /** @return {@code sum_i x[xOff + i] * y[yOff + i]} */
+  double dot(double[] x, int xOff, double[] y, int yOff, int n);
+
+  /** @return {@code sum_i x[xOff + i] * y[yOff + i]} */
+  double dot(float[] x, int xOff, float[] y, int yOff, int n);
+
+  /** @return {@code sum_i x[xOff + i] * y[yOff + i]} */
+  double dot(float[] x, int xOff, double[] y, int yOff, int n);
+
+  /** {@code y[yOff + i] += x[xOff + i]} */
+  void add(double[] x, int xOff, double[] y, int yOff, int n);
+
+  /** {@code y[yOff + i] += x[xOff + i]} */
+  void add(float[] x, int xOff, double[] y, int yOff, int n);
+
+  /** {@code y[yOff + i] += a * x[xOff + i]} */
+  void axpy(double a, double[] x, int xOff, double[] y, int yOff, int n);
+
+  /** {@code y[yOff + i] += a * x[xOff + i]} */
+  void axpy(double a, float[] x, int xOff, double[] y, int yOff, int n);
+
+  /** {@code h[i] = (h[i] + b[i])^3} for the first {@code n} elements */
+  void biasCube(double[] h, double[] b, int n);
+
+  /**
+   * Get a kernel implementation.
+   *
+   * @param vectorized Whether to try the Vector API backend. If it
+   *                   cannot be loaded, scalar kernels are returned.
+   */
+  static Kernels create(boolean vectorized) {
+    if (vectorized) {
+      try {
+        Class<?> c = Class.forName(Kernels.class.getPackage().getName() + ".VectorApiKernels");
+        return (Kernels) c.getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | LinkageError e) {
+        System.err.printf("Vector API kernels unavailable (%s); using scalar kernels%n", e);
+      }
+    }
+    return ScalarKernels.INSTANCE;
+  }
+
+}
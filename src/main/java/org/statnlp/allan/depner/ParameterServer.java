@@ -0,0 +1,578 @@
+package org.statnlp.allan.depner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import edu.stanford.nlp.io.RuntimeIOException;
+import edu.stanford.nlp.util.RuntimeInterruptedException;
+import edu.stanford.nlp.util.logging.Redwood;
+
+/**
+ * Parameter server for training on several worker processes on the
+ * local machine (see {@link Config#psWorkers}).
+ *
+ * The training process launches the workers, each of which connects
+ * back over a loopback socket and receives the configuration and the
+ * dictionaries. A worker replays the oracle on its shard of the
+ * training sentences (every {@code numWorkers}th sentence) and sends
+ * back the feature counts of its examples, from which the server
+ * chooses the pre-computed features. From then on, each step, a worker
+ * draws a mini-batch from its shard, pulls W1, b1, W2 and just the
+ * rows of E that the mini-batch reads, and pushes back its gradients,
+ * with only the touched rows of the embedding gradient. W1, b1 and W2
+ * and their gradients are sent dense (see {@link Config#psWorkers}).
+ *
+ * Messages from the workers are read on one thread per connection and
+ * handled in order of arrival on the training thread, which alone
+ * touches the server's classifier, so that evaluations and checkpoints
+ * between rounds see consistent weights. A pull for step {@code t} is
+ * answered once every worker has pushed its gradients for step
+ * {@code t - 1 - }{@link Config#psStaleness}. Without staleness the
+ * gradients of a step are summed and applied as one AdaGrad step;
+ * otherwise each is applied as it arrives.
+ */
+final class ParameterServer implements AutoCloseable {
+
+  /** A logger for this class */
+  private static Redwood.RedwoodChannels log = Redwood.channels(ParameterServer.class);
+
+  private static final int MAGIC = 0x44505053; // "DPPS"
+
+  // Messages from workers, each framed as type, step and payload length
+  private static final int FEATURE_COUNTS = 1;
+  private static final int PULL = 2;
+  private static final int PUSH = 3;
+
+  /** Queued in place of a message when a worker's connection fails */
+  private static final int FAILED = -1;
+
+  // Messages to workers
+  private static final int SETUP = 4;
+  private static final int PRE_COMPUTED = 5;
+  private static final int WEIGHTS = 6;
+
+  /** How often to check that the workers are alive while they connect */
+  private static final int ACCEPT_POLL_MILLIS = 1000;
+
+  /** How long to wait for workers to exit after their last push */
+  private static final int EXIT_TIMEOUT_SECONDS = 60;
+
+  private final Config config;
+  private final int numWorkers;
+  private final ServerSocket serverSocket;
+  private final List<Process> processes = new ArrayList<>();
+  private final Socket[] sockets;
+  private final DataInputStream[] in;
+  private final DataOutputStream[] out;
+
+  private final BlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+
+  /** Pulls that must wait for slower workers */
+  private final List<Message> waitingPulls = new ArrayList<>();
+
+  /** Number of steps whose gradients each worker has pushed */
+  private final int[] clocks;
+
+  private Classifier classifier;
+
+  /**
+   * Gradients being summed for the current step, or those of the last
+   * push when training with staleness.
+   */
+  private Classifier.Cost stepCost;
+  private int numPushed;
+
+  /**
+   * W1, b1 and W2 as last sent to a worker, or {@code null} if they
+   * have changed since.
+   */
+  private byte[] denseWeights;
+
+  /**
+   * With staleness, summed cost and accuracy of the steps in flight,
+   * indexed by step modulo the array length.
+   */
+  private final double[] roundCost, roundCorrect;
+
+  /**
+   * Open a server socket on the loopback interface.
+   */
+  ParameterServer(Config config) {
+    if (config.psWorkers < 1)
+      throw new IllegalArgumentException("psWorkers must be positive: " + config.psWorkers);
+    if (config.psStaleness < 0)
+      throw new IllegalArgumentException("psStaleness must not be negative: " + config.psStaleness);
+
+    this.config = config;
+    numWorkers = config.psWorkers;
+    sockets = new Socket[numWorkers];
+    in = new DataInputStream[numWorkers];
+    out = new DataOutputStream[numWorkers];
+    clocks = new int[numWorkers];
+    roundCost = new double[config.psStaleness + 2];
+    roundCorrect = new double[config.psStaleness + 2];
+    try {
+      serverSocket = new ServerSocket(0, numWorkers, InetAddress.getLoopbackAddress());
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
+  /**
+   * Start the worker processes and send each its shard of the training
+   * file and the dictionaries.
+   *
+   * @param firstStep Step (training iteration) at which to start
+   */
+  void launch(String trainFile, List<String> knownWords, List<String> knownPos, List<String> knownLabels,
+              int firstStep) {
+    log.info("Starting " + numWorkers + " parameter-server worker(s)...");
+    String address = serverSocket.getInetAddress().getHostAddress() + ':' + serverSocket.getLocalPort();
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    if (config.psJvmOptions == null)
+      command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+    else if (!config.psJvmOptions.trim().isEmpty())
+      command.addAll(Arrays.asList(config.psJvmOptions.trim().split("\\s+")));
+    command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), DependencyParser.class.getName(),
+        "-psServer", address));
+
+    Arrays.fill(clocks, firstStep);
+    try {
+      for (int k = 0; k < numWorkers; ++k)
+        processes.add(new ProcessBuilder(command).inheritIO().start());
+
+      // Shards are assigned in order of connection
+      serverSocket.setSoTimeout(ACCEPT_POLL_MILLIS);
+      for (int k = 0; k < numWorkers; ) {
+        try {
+          sockets[k] = serverSocket.accept();
+        } catch (SocketTimeoutException e) {
+          checkWorkersAlive();
+          continue;
+        }
+        sockets[k].setTcpNoDelay(true);
+        in[k] = new DataInputStream(new BufferedInputStream(sockets[k].getInputStream(), 1 << 16));
+        out[k] = new DataOutputStream(new BufferedOutputStream(sockets[k].getOutputStream(), 1 << 16));
+        ++k;
+      }
+
+      StringWriter properties = new StringWriter();
+      config.properties.store(properties, null);
+      for (int k = 0; k < numWorkers; ++k) {
+        DataOutputStream o = out[k];
+        o.writeInt(MAGIC);
+        o.writeInt(SETUP);
+        Checkpoint.writeStrings(o, Arrays.asList(properties.toString(), trainFile));
+        o.writeInt(k);
+        o.writeInt(numWorkers);
+        o.writeInt(firstStep);
+        Checkpoint.writeStrings(o, knownWords);
+        Checkpoint.writeStrings(o, knownPos);
+        Checkpoint.writeStrings(o, knownLabels);
+        o.flush();
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
+  private void checkWorkersAlive() {
+    for (int k = 0; k < processes.size(); ++k)
+      if (!processes.get(k).isAlive())
+        throw new IllegalStateException("Parameter-server worker process " + k + " exited with status "
+            + processes.get(k).exitValue());
+  }
+
+  /**
+   * Wait for every worker to generate its examples.
+   *
+   * @return Counts of the feature IDs (token times {@code numTokens}
+   *         plus position) of all workers' examples
+   */
+  IntIntMap collectFeatureCounts() {
+    IntIntMap featureCounts = new IntIntMap(config.numPreComputed);
+    try {
+      for (int k = 0; k < numWorkers; ++k) {
+        Message message = readMessage(k);
+        if (message.type != FEATURE_COUNTS)
+          throw new IllegalStateException("Expected feature counts from worker " + k + ", got " + message.type);
+        DataInputStream payload = message.payload();
+        int size = payload.readInt();
+        for (int i = 0; i < size; ++i)
+          featureCounts.add(payload.readInt(), payload.readInt());
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+    return featureCounts;
+  }
+
+  /**
+   * Send the workers the pre-computed features and seeds drawn from
+   * the shared random generator, and start serving them the weights of
+   * {@code classifier}.
+   */
+  void start(Classifier classifier, List<Integer> preComputed) {
+    this.classifier = classifier;
+    stepCost = classifier.newCost();
+    int[] featureIDs = preComputed.stream().mapToInt(Integer::intValue).toArray();
+    try {
+      for (int k = 0; k < numWorkers; ++k) {
+        out[k].writeInt(PRE_COMPUTED);
+        Checkpoint.writeInts(out[k], featureIDs);
+        out[k].writeLong(Util.getRandom().nextLong());
+        out[k].flush();
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+
+    for (int k = 0; k < numWorkers; ++k) {
+      int worker = k;
+      Thread reader = new Thread(() -> {
+        try {
+          while (true)
+            messages.add(readMessage(worker));
+        } catch (IOException e) {
+          messages.add(new Message(worker, e));
+        }
+      }, "parameter-server-reader-" + k);
+      reader.setDaemon(true);
+      reader.start();
+    }
+  }
+
+  /**
+   * Serve the workers until all of them have pushed the gradients of
+   * the next step, and log the cost of that step.
+   */
+  void trainRound() {
+    int step = minClock();
+    try {
+      while (minClock() <= step) {
+        Message message = messages.take();
+        switch (message.type) {
+          case PULL:
+            waitingPulls.add(message);
+            break;
+          case PUSH:
+            push(message);
+            break;
+          case FAILED:
+            // A worker closes its connection once done
+            if (clocks[message.worker] < config.maxIter)
+              throw new RuntimeIOException("Lost parameter-server worker " + message.worker, message.failure);
+            break;
+          default:
+            throw new IllegalStateException("Unexpected message " + message.type + " from worker "
+                + message.worker);
+        }
+        serveWaitingPulls();
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeInterruptedException(e);
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
+  private void push(Message message) throws IOException {
+    if (config.psStaleness == 0) {
+      stepCost.read(message.payload());
+      clocks[message.worker]++;
+      if (++numPushed == numWorkers) {
+        stepCost.addL2Regularization(config.regParameter);
+        log.info("Cost = " + stepCost.getCost() + ", Correct(%) = " + stepCost.getPercentCorrect());
+        classifier.takeAdaGradientStep(stepCost, config.adaAlpha, config.adaEps);
+        stepCost.clear();
+        numPushed = 0;
+        denseWeights = null;
+      }
+    } else {
+      stepCost.clear();
+      stepCost.read(message.payload());
+      // Each round takes numWorkers steps; share the L2 term among them
+      // so that a round is regularized once, as a synchronous step is
+      stepCost.addL2Regularization(config.regParameter / numWorkers);
+      int slot = message.step % roundCost.length;
+      roundCost[slot] += stepCost.getCost();
+      roundCorrect[slot] += stepCost.getPercentCorrect();
+      classifier.takeAdaGradientStep(stepCost, config.adaAlpha, config.adaEps);
+      denseWeights = null;
+
+      int step = minClock();
+      clocks[message.worker]++;
+      if (minClock() > step) {
+        slot = step % roundCost.length;
+        log.info("Cost = " + roundCost[slot] / numWorkers + ", Correct(%) = " + roundCorrect[slot] / numWorkers);
+        roundCost[slot] = 0.0;
+        roundCorrect[slot] = 0.0;
+      }
+    }
+  }
+
+  /**
+   * Answer the pulls that the workers' clocks now allow.
+   */
+  private void serveWaitingPulls() throws IOException {
+    int maxStep = minClock() + config.psStaleness;
+    for (Iterator<Message> it = waitingPulls.iterator(); it.hasNext(); ) {
+      Message pull = it.next();
+      if (pull.step > maxStep)
+        continue;
+      it.remove();
+
+      if (denseWeights == null) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dense = new DataOutputStream(bytes);
+        classifier.writeDenseWeights(dense);
+        dense.flush();
+        denseWeights = bytes.toByteArray();
+      }
+      int[] rows = Checkpoint.readInts(pull.payload());
+      DataOutputStream o = out[pull.worker];
+      try {
+        o.writeInt(WEIGHTS);
+        o.write(denseWeights);
+        classifier.writeEmbeddings(o, rows);
+        o.flush();
+      } catch (IOException e) {
+        throw new RuntimeIOException("Lost parameter-server worker " + pull.worker, e);
+      }
+    }
+  }
+
+  private int minClock() {
+    int min = Integer.MAX_VALUE;
+    for (int clock : clocks)
+      min = Math.min(min, clock);
+    return min;
+  }
+
+  private Message readMessage(int worker) throws IOException {
+    DataInputStream i = in[worker];
+    int type = i.readInt();
+    int step = i.readInt();
+    byte[] payload = new byte[i.readInt()];
+    i.readFully(payload);
+    return new Message(worker, type, step, payload);
+  }
+
+  /**
+   * Wait for the workers to exit, and close the connections.
+   */
+  @Override
+  public void close() {
+    try {
+      for (int k = 0; k < processes.size(); ++k) {
+        Process process = processes.get(k);
+        if (!process.waitFor(EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          log.info("Parameter-server worker " + k + " did not exit; killing it");
+          process.destroyForcibly();
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeInterruptedException(e);
+    } finally {
+      try {
+        for (Socket socket : sockets)
+          if (socket != null)
+            socket.close();
+        serverSocket.close();
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+    }
+  }
+
+  /**
+   * A message from a worker, or the failure of its connection.
+   */
+  private static final class Message {
+
+    final int worker;
+    final int type;
+    final int step;
+    private final byte[] bytes;
+    final IOException failure;
+
+    Message(int worker, int type, int step, byte[] bytes) {
+      this.worker = worker;
+      this.type = type;
+      this.step = step;
+      this.bytes = bytes;
+      this.failure = null;
+    }
+
+    Message(int worker, IOException failure) {
+      this.worker = worker;
+      this.type = FAILED;
+      this.step = -1;
+      this.bytes = null;
+      this.failure = failure;
+    }
+
+    DataInputStream payload() {
+      return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+  }
+
+  /**
+   * A worker's connection to the parameter server, and the setup the
+   * server sent over it.
+   */
+  static final class Client implements AutoCloseable {
+
+    final Properties properties = new Properties();
+    final String trainFile;
+
+    /** This worker's shard: every {@code numShards}th sentence from {@code shard} on */
+    final int shard, numShards;
+
+    final int firstStep;
+    final List<String> knownWords, knownPos, knownLabels;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /** Payload of the message being sent, reused from one to the next */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream payload = new DataOutputStream(buffer);
+
+    /**
+     * Connect to the server at {@code address} ({@code host:port}) and
+     * receive the setup.
+     */
+    Client(String address) {
+      int colon = address.lastIndexOf(':');
+      if (colon < 0)
+        throw new IllegalArgumentException("Parameter-server address must be host:port: " + address);
+      try {
+        socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+        if (in.readInt() != MAGIC)
+          throw new IllegalStateException(address + " is not a parameter server");
+        expect(SETUP);
+        List<String> strings = Checkpoint.readStrings(in);
+        properties.load(new StringReader(strings.get(0)));
+        trainFile = strings.get(1);
+        shard = in.readInt();
+        numShards = in.readInt();
+        firstStep = in.readInt();
+        knownWords = Checkpoint.readStrings(in);
+        knownPos = Checkpoint.readStrings(in);
+        knownLabels = Checkpoint.readStrings(in);
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+    }
+
+    private void expect(int type) throws IOException {
+      int received = in.readInt();
+      if (received != type)
+        throw new IllegalStateException("Expected message " + type + " from parameter server, got " + received);
+    }
+
+    private void send(int type, int step) throws IOException {
+      payload.flush();
+      out.writeInt(type);
+      out.writeInt(step);
+      out.writeInt(buffer.size());
+      buffer.writeTo(out);
+      out.flush();
+      buffer.reset();
+    }
+
+    /**
+     * Send the feature counts of this worker's examples, and receive
+     * the features chosen for pre-computation. The shared random
+     * generator is then seeded by the server.
+     */
+    List<Integer> exchangeFeatureCounts(IntIntMap featureCounts) {
+      try {
+        int[] keys = featureCounts.keys();
+        payload.writeInt(keys.length);
+        for (int key : keys) {
+          payload.writeInt(key);
+          payload.writeInt(featureCounts.get(key));
+        }
+        send(FEATURE_COUNTS, 0);
+
+        expect(PRE_COMPUTED);
+        List<Integer> preComputed = new ArrayList<>();
+        for (int featureID : Checkpoint.readInts(in))
+          preComputed.add(featureID);
+        Util.getRandom(in.readLong());
+        return preComputed;
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+    }
+
+    /**
+     * Wait until the server allows {@code step} to start, and load the
+     * weights it sends, with the given rows of E, into
+     * {@code classifier}.
+     */
+    void pull(int step, int[] rows, Classifier classifier) {
+      try {
+        Checkpoint.writeInts(payload, rows);
+        send(PULL, step);
+        expect(WEIGHTS);
+        classifier.readWeights(in);
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+    }
+
+    /**
+     * Send the gradients of {@code step}.
+     */
+    void push(int step, Classifier.Cost cost) {
+      try {
+        cost.write(payload);
+        send(PUSH, step);
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+    }
+
+  }
+
+}
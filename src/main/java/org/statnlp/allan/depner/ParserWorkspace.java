@@ -0,0 +1,62 @@
+package org.statnlp.allan.depner;
+
+/**
+ * Scratch buffers for running the parser over one batch of
+ * configurations: feature vectors, legal-transition masks, hidden-layer
+ * activations and the decoded transitions. With a workspace in hand,
+ * advancing the configurations of a batch allocates nothing on the
+ * heap (for the eagerly pre-computed and the quantized classifier;
+ * the lazy cache allocates on its own).
+ *
+ * A workspace is not thread-safe: each parsing thread needs its own.
+ * Build one with {@link DependencyParser#newWorkspace()}.
+ */
+final class ParserWorkspace {
+
+  /** Configurations of the batch being parsed */
+  final Configuration[] configurations;
+
+  /** Indices into {@link #configurations} of the unfinished parses */
+  final int[] active;
+
+  /** Feature vector of each active configuration */
+  final int[][] features;
+
+  /** Legal-transition mask of each active configuration */
+  final boolean[][] legal;
+
+  /** Transition chosen for each active configuration */
+  final int[] best;
+
+  /** Hidden-layer activations of each active configuration */
+  final double[][] hidden;
+
+  /** Score of the transition in {@link #best}, while it is chosen */
+  final double[] bestScore;
+
+  /** Integer hidden-layer sums of the quantized scorer */
+  final int[] acc;
+
+  /** Quantized hidden-layer activations of each active configuration */
+  final byte[][] hiddenQ;
+
+  ParserWorkspace(int batchSize, int numTokens, int numTransitions, int hiddenSize) {
+    configurations = new Configuration[batchSize];
+    active = new int[batchSize];
+    features = new int[batchSize][numTokens];
+    legal = new boolean[batchSize][numTransitions];
+    best = new int[batchSize];
+    hidden = new double[batchSize][hiddenSize];
+    bestScore = new double[batchSize];
+    acc = new int[hiddenSize];
+    hiddenQ = new byte[batchSize][hiddenSize];
+  }
+
+  /**
+   * @return Maximum number of configurations parsed in lockstep
+   */
+  int capacity() {
+    return configurations.length;
+  }
+
+}
@@ -55,12 +55,34 @@ public abstract class ParsingSystem  {
    */
   public abstract boolean canApply(Configuration c, String t);
 
+  /**
+   * Determine which transitions are legal for this configuration,
+   * all at once. {@code legal[j]} is set to whether transition
+   * {@code j} (in the order of {@link #transitions}) can be applied.
+   *
+   * The default implementation calls {@link #canApply} for each
+   * transition; subclasses may share work across transitions.
+   */
+  public void legalTransitions(Configuration c, boolean[] legal) {
+    for (int j = 0; j < transitions.size(); ++j)
+      legal[j] = canApply(c, transitions.get(j));
+  }
+
   /**
    * Apply the given transition to the given configuration, modifying
    * the configuration's state in place.
    */
   public abstract void apply(Configuration c, String t);
 
+  /**
+   * Apply transition number {@code t} (in the order of
+   * {@link #transitions}) to the given configuration. Subclasses may
+   * override this to avoid decoding the transition string.
+   */
+  public void apply(Configuration c, int t) {
+    apply(c, transitions.get(t));
+  }
+
   /**
    * Provide a static-oracle recommendation for the next parsing step
    * to take.
@@ -0,0 +1,116 @@
+package org.statnlp.allan.depner;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, thread-safe cache of hidden-layer contributions, keyed by
+ * feature ID ({@code tok * numTokens + position}).
+ *
+ * This is the lazy alternative to pre-computing every entry of the
+ * model's {@code preComputed} list at startup: a contribution is
+ * computed the first time its feature is seen and kept for as long as
+ * it stays popular. Any feature may be cached, not only those chosen
+ * at training time, so the cached set adapts to the text being parsed.
+ *
+ * The cache is set-associative. A key may only live in one of
+ * {@value #WAYS} slots chosen by its hash. Each entry counts its hits;
+ * when a set is full, a new entry replaces the least frequently used
+ * one, and the counts of the survivors are halved so that old
+ * popularity decays. Entries are immutable once published, so
+ * readers never lock; hit counts are updated racily, which only makes
+ * them approximate.
+ *
+ * @see Config#lazyPreCompute
+ */
+final class PreComputeCache {
+
+  private static final int WAYS = 8;
+
+  private static final class Entry {
+    final int key;
+    final double[] row;
+    int hits;
+
+    Entry(int key, double[] row) {
+      this.key = key;
+      this.row = row;
+    }
+  }
+
+  private final AtomicReferenceArray<Entry> slots;
+  private final int setMask;
+
+  /**
+   * @param capacity Maximum number of cached rows (rounded up to a
+   *                 power of two times {@value #WAYS})
+   */
+  PreComputeCache(int capacity) {
+    int numSets = Integer.highestOneBit(Math.max(1, (capacity + WAYS - 1) / WAYS) * 2 - 1);
+    slots = new AtomicReferenceArray<>(numSets * WAYS);
+    setMask = numSets - 1;
+  }
+
+  private int firstSlot(int key) {
+    int h = key * 0x9E3779B9;
+    return ((h ^ (h >>> 16)) & setMask) * WAYS;
+  }
+
+  /**
+   * @return The cached row for {@code key}, or {@code null} if absent
+   */
+  double[] get(int key) {
+    int first = firstSlot(key);
+    for (int i = first; i < first + WAYS; ++i) {
+      Entry e = slots.get(i);
+      if (e != null && e.key == key) {
+        e.hits++;
+        return e.row;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Insert a row, evicting the least frequently used entry of its set
+   * if the set is full. If another thread races on the same set, the
+   * insertion may be dropped; the caller still owns a valid row.
+   */
+  void put(int key, double[] row) {
+    int first = firstSlot(key);
+    int victim = -1;
+    Entry victimEntry = null;
+    for (int i = first; i < first + WAYS; ++i) {
+      Entry e = slots.get(i);
+      if (e == null) {
+        victim = i;
+        victimEntry = null;
+        break;
+      }
+      if (e.key == key)
+        return;
+      if (victimEntry == null || e.hits < victimEntry.hits) {
+        victim = i;
+        victimEntry = e;
+      }
+    }
+
+    if (!slots.compareAndSet(victim, victimEntry, new Entry(key, row)))
+      return;
+
+    if (victimEntry != null) {
+      for (int i = first; i < first + WAYS; ++i) {
+        Entry e = slots.get(i);
+        if (e != null)
+          e.hits >>= 1;
+      }
+    }
+  }
+
+  /**
+   * @return Maximum number of rows this cache can hold
+   */
+  int capacity() {
+    return slots.length();
+  }
+
+}
@@ -0,0 +1,233 @@
+package org.statnlp.allan.depner;
+
+import java.util.Arrays;
+
+/**
+ * Int8-quantized feedforward pass for a trained {@link Classifier}.
+ *
+ * Every matrix is stored as signed bytes in a flat, row-major array
+ * with one single-precision scale per row:
+ * <ul>
+ *   <li>The pre-computed hidden-layer activations use one scale per
+ *   hidden unit, shared by every saved row, so that the contributions
+ *   of all pre-computed features can be summed in an {@code int}
+ *   accumulator and scaled once.</li>
+ *   <li>{@code W1} and {@code E} rows each carry their own scale; the
+ *   fallback product for features which were not pre-computed is an
+ *   integer dot product scaled by both.</li>
+ *   <li>The cubed hidden activations are quantized with static
+ *   per-unit ranges measured on a calibration set (see
+ *   {@link Classifier#startCalibration()}). These ranges are folded
+ *   into the columns of {@code W2} before it is quantized per row, so
+ *   the output layer is again a plain integer dot product.</li>
+ * </ul>
+ *
+ * Instances are immutable once built.
+ *
+ * @see Config#quantize
+ */
+final class QuantizedScorer {
+
+  private static final int QMAX = 127;
+
+  private final int hiddenSize, embeddingSize, numTokens, numLabels;
+
+  private final IntIntMap preMap;
+  private final byte[] saved;
+  private final float[] savedScale;
+
+  private final byte[] W1, E, W2;
+  private final float[] W1Scale, EScale, W2Scale;
+  private final double[] b1;
+
+  /** Per-unit quantization step of the cubed hidden activations. */
+  private final float[] activationScale;
+
+  /**
+   * Quantize the weights and pre-computed activations of the given
+   * classifier, which must have run {@link Classifier#preCompute()}.
+   *
+   * @param activationRange Largest absolute value of each cubed
+   *                        hidden unit observed during calibration
+   */
+  QuantizedScorer(Config config, Classifier classifier, double[] activationRange) {
+    hiddenSize = config.hiddenSize;
+    embeddingSize = config.embeddingSize;
+    numTokens = Config.numTokens;
+
+    double[][] w1 = classifier.getW1(), e = classifier.getE(), w2 = classifier.getW2();
+    numLabels = w2.length;
+    b1 = classifier.getb1().clone();
+
+    preMap = classifier.getPreMap();
+    int numSaved = preMap.size();
+    savedScale = new float[hiddenSize];
+    for (int id = 0; id < numSaved; ++id)
+      for (int i = 0; i < hiddenSize; ++i)
+        savedScale[i] = (float) Math.max(savedScale[i], Math.abs(classifier.getSaved(id, i)));
+    for (int i = 0; i < hiddenSize; ++i)
+      savedScale[i] = step(savedScale[i]);
+    saved = new byte[numSaved * hiddenSize];
+    for (int id = 0; id < numSaved; ++id)
+      for (int i = 0; i < hiddenSize; ++i)
+        saved[id * hiddenSize + i] = quantize(classifier.getSaved(id, i), savedScale[i]);
+
+    W1 = new byte[w1.length * w1[0].length];
+    W1Scale = quantizeRows(w1, W1);
+    E = new byte[e.length * embeddingSize];
+    EScale = quantizeRows(e, E);
+
+    activationScale = new float[hiddenSize];
+    double[][] foldedW2 = new double[numLabels][hiddenSize];
+    for (int j = 0; j < hiddenSize; ++j) {
+      activationScale[j] = step(activationRange[j]);
+      for (int l = 0; l < numLabels; ++l)
+        foldedW2[l][j] = w2[l][j] * activationScale[j];
+    }
+    W2 = new byte[numLabels * hiddenSize];
+    W2Scale = quantizeRows(foldedW2, W2);
+  }
+
+  /**
+   * Quantization step mapping {@code [-range, range]} onto
+   * {@code [-127, 127]}. Falls back to 1 for an all-zero range so that
+   * zero quantizes to zero.
+   */
+  private static float step(double range) {
+    return range > 0 ? (float) (range / QMAX) : 1.0f;
+  }
+
+  private static byte quantize(double value, float step) {
+    long q = Math.round(value / step);
+    return (byte) Math.max(-QMAX, Math.min(QMAX, q));
+  }
+
+  /**
+   * Quantize each row of {@code m} with its own scale into the flat
+   * array {@code dst}.
+   *
+   * @return Per-row quantization steps
+   */
+  private static float[] quantizeRows(double[][] m, byte[] dst) {
+    float[] scales = new float[m.length];
+    for (int i = 0; i < m.length; ++i) {
+      double range = 0.0;
+      for (double v : m[i])
+        range = Math.max(range, Math.abs(v));
+      scales[i] = step(range);
+      int base = i * m[i].length;
+      for (int j = 0; j < m[i].length; ++j)
+        dst[base + j] = quantize(m[i][j], scales[i]);
+    }
+    return scales;
+  }
+
+  /**
+   * Feed a feature vector forward through the quantized network.
+   * Returns the values of the output layer.
+   */
+  double[] computeScores(int[] feature) {
+    byte[] hiddenQ = new byte[hiddenSize];
+    computeHidden(feature, new double[hiddenSize], new int[hiddenSize], hiddenQ);
+
+    double[] scores = new double[numLabels];
+    for (int l = 0; l < numLabels; ++l)
+      scores[l] = score(l, hiddenQ);
+    return scores;
+  }
+
+  /**
+   * Quantized counterpart of
+   * {@link Classifier#argmaxScores(ParserWorkspace, int)}: the same
+   * blocked, legal-only output layer, on integer dot products. Uses
+   * the workspace's scratch buffers, so nothing is allocated.
+   */
+  void argmaxScores(ParserWorkspace workspace, int numRows) {
+    byte[][] hiddenQ = workspace.hiddenQ;
+    for (int r = 0; r < numRows; ++r)
+      computeHidden(workspace.features[r], workspace.hidden[r], workspace.acc, hiddenQ[r]);
+
+    boolean[][] legal = workspace.legal;
+    int[] best = workspace.best;
+    double[] bestScore = workspace.bestScore;
+    Arrays.fill(best, 0, numRows, -1);
+    Arrays.fill(bestScore, 0, numRows, Double.NEGATIVE_INFINITY);
+    for (int r0 = 0; r0 < numRows; r0 += Classifier.SCORE_BLOCK) {
+      int r1 = Math.min(r0 + Classifier.SCORE_BLOCK, numRows);
+      for (int l0 = 0; l0 < numLabels; l0 += Classifier.SCORE_BLOCK) {
+        int l1 = Math.min(l0 + Classifier.SCORE_BLOCK, numLabels);
+        for (int r = r0; r < r1; ++r) {
+          for (int l = l0; l < l1; ++l) {
+            if (!legal[r][l])
+              continue;
+            double score = score(l, hiddenQ[r]);
+            if (score > bestScore[r]) {
+              bestScore[r] = score;
+              best[r] = l;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Compute the quantized hidden-layer activations (after the cube
+   * nonlinearity) of a feature vector into {@code hiddenQ}.
+   * {@code hidden} and {@code acc} are scratch space of
+   * {@code hiddenSize} entries.
+   */
+  private void computeHidden(int[] feature, double[] hidden, int[] acc, byte[] hiddenQ) {
+    Arrays.fill(hidden, 0.0);
+    Arrays.fill(acc, 0);
+    int w1Cols = embeddingSize * numTokens;
+
+    int offset = 0;
+    for (int j = 0; j < feature.length; ++j) {
+      int tok = feature[j];
+      int id = preMap.get(tok * numTokens + j);
+      if (id != IntIntMap.NONE) {
+        int base = id * hiddenSize;
+        for (int i = 0; i < hiddenSize; ++i)
+          acc[i] += saved[base + i];
+      } else {
+        int eBase = tok * embeddingSize;
+        for (int i = 0; i < hiddenSize; ++i) {
+          int w1Base = i * w1Cols + offset;
+          int dot = 0;
+          for (int k = 0; k < embeddingSize; ++k)
+            dot += W1[w1Base + k] * E[eBase + k];
+          hidden[i] += dot * (double) W1Scale[i] * EScale[tok];
+        }
+      }
+      offset += embeddingSize;
+    }
+
+    for (int i = 0; i < hiddenSize; ++i) {
+      double h = hidden[i] + acc[i] * (double) savedScale[i] + b1[i];
+      hiddenQ[i] = quantize(h * h * h, activationScale[i]);  // cube nonlinearity
+    }
+  }
+
+  /**
+   * Output-layer score of transition {@code label} given quantized
+   * hidden-layer activations.
+   */
+  private double score(int label, byte[] hiddenQ) {
+    int w2Base = label * hiddenSize;
+    int dot = 0;
+    for (int j = 0; j < hiddenSize; ++j)
+      dot += W2[w2Base + j] * hiddenQ[j];
+    return dot * (double) W2Scale[label];
+  }
+
+  /**
+   * @return Bytes held by the quantized tables
+   */
+  long sizeInBytes() {
+    return saved.length + W1.length + E.length + W2.length
+        + 4L * (savedScale.length + W1Scale.length + EScale.length + W2Scale.length + activationScale.length)
+        + 8L * b1.length;
+  }
+
+}
@@ -0,0 +1,68 @@
+package org.statnlp.allan.depner;
+
+/**
+ * Plain Java implementation of {@link Kernels}.
+ */
+final class ScalarKernels implements Kernels {
+
+  static final ScalarKernels INSTANCE = new ScalarKernels();
+
+  private ScalarKernels() {}
+
+  @Override
+  public double dot(double[] x, int xOff, double[] y, int yOff, int n) {
+    double sum = 0.0;
+    for (int i = 0; i < n; ++i)
+      sum += x[xOff + i] * y[yOff + i];
+    return sum;
+  }
+
+  @Override
+  public double dot(float[] x, int xOff, float[] y, int yOff, int n) {
+    double sum = 0.0;
+    for (int i = 0; i < n; ++i)
+      sum += x[xOff + i] * y[yOff + i];
+    return sum;
+  }
+
+  @Override
+  public double dot(float[] x, int xOff, double[] y, int yOff, int n) {
+    double sum = 0.0;
+    for (int i = 0; i < n; ++i)
+      sum += x[xOff + i] * y[yOff + i];
+    return sum;
+  }
+
+  @Override
+  public void add(double[] x, int xOff, double[] y, int yOff, int n) {
+    for (int i = 0; i < n; ++i)
+      y[yOff + i] += x[xOff + i];
+  }
+
+  @Override
+  public void add(float[] x, int xOff, double[] y, int yOff, int n) {
+    for (int i = 0; i < n; ++i)
+      y[yOff + i] += x[xOff + i];
+  }
+
+  @Override
+  public void axpy(double a, double[] x, int xOff, double[] y, int yOff, int n) {
+    for (int i = 0; i < n; ++i)
+      y[yOff + i] += a * x[xOff + i];
+  }
+
+  @Override
+  public void axpy(double a, float[] x, int xOff, double[] y, int yOff, int n) {
+    for (int i = 0; i < n; ++i)
+      y[yOff + i] += a * x[xOff + i];
+  }
+
+  @Override
+  public void biasCube(double[] h, double[] b, int n) {
+    for (int i = 0; i < n; ++i) {
+      double v = h[i] + b[i];
+      h[i] = v * v * v;
+    }
+  }
+
+}
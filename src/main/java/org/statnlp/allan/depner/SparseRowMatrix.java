@@ -0,0 +1,119 @@
+package org.statnlp.allan.depner;
+
+import java.util.Arrays;
+
+/**
+ * A matrix of which only a few rows are nonzero, such as the gradient
+ * of the embedding matrix over one mini-batch.
+ *
+ * Touched rows are stored one after the other in a compact value
+ * block, in the order they were first touched; all other rows are
+ * implicitly zero. Merging and clearing cost time in proportion to the
+ * number of touched rows, not the number of rows of the matrix.
+ */
+final class SparseRowMatrix {
+
+  private final int numCols;
+
+  /** Slot of each row in the value block, or -1 if untouched */
+  private final int[] slotOfRow;
+
+  /** Touched rows, by slot */
+  private int[] rows = new int[64];
+  private int numTouched;
+
+  private double[] values;
+
+  SparseRowMatrix(int numRows, int numCols) {
+    this.numCols = numCols;
+    slotOfRow = new int[numRows];
+    Arrays.fill(slotOfRow, -1);
+    values = new double[rows.length * numCols];
+  }
+
+  int numRows() {
+    return slotOfRow.length;
+  }
+
+  int numTouched() {
+    return numTouched;
+  }
+
+  /**
+   * @return Index of the {@code k}th touched row
+   */
+  int touchedRow(int k) {
+    return rows[k];
+  }
+
+  /**
+   * @return Offset of {@code row} in {@link #values()}, or -1 if the
+   *         row is untouched (all zero)
+   */
+  int offset(int row) {
+    int slot = slotOfRow[row];
+    return slot < 0 ? -1 : slot * numCols;
+  }
+
+  /**
+   * Make {@code row} writable, adding it as an all-zero row if it is
+   * untouched.
+   *
+   * @return Offset of {@code row} in {@link #values()}. As the value
+   *         block may be reallocated, fetch it only after this call.
+   */
+  int touch(int row) {
+    int slot = slotOfRow[row];
+    if (slot < 0) {
+      if (numTouched == rows.length) {
+        rows = Arrays.copyOf(rows, rows.length * 2);
+        values = Arrays.copyOf(values, rows.length * numCols);
+      }
+      slot = numTouched++;
+      rows[slot] = row;
+      slotOfRow[row] = slot;
+    }
+    return slot * numCols;
+  }
+
+  /**
+   * @return Value block holding the touched rows; see
+   *         {@link #offset(int)}
+   */
+  double[] values() {
+    return values;
+  }
+
+  /**
+   * Reset every row to zero.
+   */
+  void clear() {
+    Arrays.fill(values, 0, numTouched * numCols, 0.0);
+    for (int k = 0; k < numTouched; ++k)
+      slotOfRow[rows[k]] = -1;
+    numTouched = 0;
+  }
+
+  /**
+   * Add {@code other} to this matrix, touching its touched rows.
+   */
+  void addInPlace(SparseRowMatrix other) {
+    for (int k = 0; k < other.numTouched; ++k) {
+      int to = touch(other.rows[k]);
+      int from = k * numCols;
+      for (int j = 0; j < numCols; ++j)
+        values[to + j] += other.values[from + j];
+    }
+  }
+
+  /**
+   * @return A dense copy of this matrix
+   */
+  double[][] toDense() {
+    double[][] dense = new double[slotOfRow.length][numCols];
+    for (int k = 0; k < numTouched; ++k)
+      System.arraycopy(values, k * numCols, dense[rows[k]], 0, numCols);
+    return dense;
+  }
+
+}
@@ -30,7 +30,92 @@ public class Util  {
 
   private Util() {} // static methods
 
-  private static Random random;
+  private static StatefulRandom random;
+
+  /**
+   * A {@link Random} whose state can be saved and restored: the same
+   * linear congruential generator, with its 48-bit state in a field
+   * of its own, so it draws exactly what {@code Random} does from the
+   * same seed. Gaussian draws use the same polar method as
+   * {@code Random}, and the second value it caches is part of the
+   * state.
+   */
+  private static final class StatefulRandom extends Random {
+
+    private static final long MULTIPLIER = 0x5DEECE66DL;
+    private static final long ADDEND = 0xBL;
+    private static final long MASK = (1L << 48) - 1;
+
+    // Set by the superclass constructor, through setSeed
+    private long state;
+    private boolean haveNextNextGaussian;
+    private double nextNextGaussian;
+
+    private StatefulRandom(long seed) {
+      super(seed);
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+      state = (seed ^ MULTIPLIER) & MASK;
+      haveNextNextGaussian = false;
+    }
+
+    @Override
+    protected synchronized int next(int bits) {
+      state = (state * MULTIPLIER + ADDEND) & MASK;
+      return (int) (state >>> (48 - bits));
+    }
+
+    @Override
+    public synchronized double nextGaussian() {
+      if (haveNextNextGaussian) {
+        haveNextNextGaussian = false;
+        return nextNextGaussian;
+      }
+      double v1, v2, s;
+      do {
+        v1 = 2 * nextDouble() - 1; // between -1 and 1
+        v2 = 2 * nextDouble() - 1; // between -1 and 1
+        s = v1 * v1 + v2 * v2;
+      } while (s >= 1 || s == 0);
+      double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+      nextNextGaussian = v2 * multiplier;
+      haveNextNextGaussian = true;
+      return v1 * multiplier;
+    }
+
+    private synchronized RandomState getState() {
+      return new RandomState(state, haveNextNextGaussian, nextNextGaussian);
+    }
+
+    private synchronized void setState(RandomState state) {
+      if ((state.seed & ~MASK) != 0)
+        throw new IllegalArgumentException("Not a random generator state: " + state.seed);
+      this.state = state.seed;
+      haveNextNextGaussian = state.haveNextNextGaussian;
+      nextNextGaussian = state.nextNextGaussian;
+    }
+  }
+
+  /**
+   * State of the shared random generator: the 48-bit state of its
+   * linear congruential generator, and the second Gaussian of the last
+   * pair drawn, if it has not been returned yet.
+   */
+  static final class RandomState {
+
+    final long seed;
+    final boolean haveNextNextGaussian;
+    final double nextNextGaussian;
+
+    RandomState(long seed, boolean haveNextNextGaussian, double nextNextGaussian) {
+      this.seed = seed;
+      this.haveNextNextGaussian = haveNextNextGaussian;
+      this.nextNextGaussian = nextNextGaussian;
+    }
+
+  }
 
   /**
    * Normalize word embeddings by setting mean = rMean, std = rStd
@@ -111,12 +196,35 @@ public class Util  {
    * @return Shared random generator object
    */
   static Random getRandom(long seed) {
-    random = new Random(seed);
+    random = new StatefulRandom(seed);
     System.err.printf("Random generator initialized with seed %d%n", seed);
 
     return random;
   }
 
+  /**
+   * @return The current state of the shared random generator, from
+   *         which {@link #setRandomState(RandomState)} continues the
+   *         same sequence
+   */
+  static RandomState getRandomState() {
+    getRandom();
+    return random.getState();
+  }
+
+  /**
+   * Continue the sequence of the shared random generator from a state
+   * returned by {@link #getRandomState()}.
+   *
+   * @throws java.lang.IllegalArgumentException If {@code state} is
+   *         not a generator state
+   */
+  static void setRandomState(RandomState state) {
+    if (random == null)
+      random = new StatefulRandom(0L);
+    random.setState(state);
+  }
+
   public static <T> List<T> getRandomSubList(List<T> input, int subsetSize)
   {
     int inputSize = input.size();
@@ -0,0 +1,117 @@
+package org.statnlp.allan.depner;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link Kernels} implementation on the incubating Vector API.
+ *
+ * Doubles use the platform's preferred vector width; floats are loaded
+ * at half that width so that each float vector widens to exactly one
+ * double vector. Loop tails are handled with scalar code.
+ *
+ * This class is compiled only on JDK 16+ (see the {@code vector-api}
+ * profile in the POM) and is loaded reflectively by
+ * {@link Kernels#create(boolean)}.
+ */
+final class VectorApiKernels implements Kernels {
+
+  private static final VectorSpecies<Double> D = DoubleVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Float> F =
+      VectorSpecies.of(float.class, VectorShape.forBitSize(D.vectorBitSize() / 2));
+
+  private static DoubleVector widen(FloatVector v) {
+    return (DoubleVector) v.convertShape(VectorOperators.F2D, D, 0);
+  }
+
+  @Override
+  public double dot(double[] x, int xOff, double[] y, int yOff, int n) {
+    DoubleVector acc = DoubleVector.zero(D);
+    int i = 0;
+    for (int upper = D.loopBound(n); i < upper; i += D.length())
+      acc = DoubleVector.fromArray(D, x, xOff + i).fma(DoubleVector.fromArray(D, y, yOff + i), acc);
+    double sum = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < n; ++i)
+      sum += x[xOff + i] * y[yOff + i];
+    return sum;
+  }
+
+  @Override
+  public double dot(float[] x, int xOff, float[] y, int yOff, int n) {
+    DoubleVector acc = DoubleVector.zero(D);
+    int i = 0;
+    for (int upper = F.loopBound(n); i < upper; i += F.length())
+      acc = acc.add(widen(FloatVector.fromArray(F, x, xOff + i).mul(FloatVector.fromArray(F, y, yOff + i))));
+    double sum = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < n; ++i)
+      sum += x[xOff + i] * y[yOff + i];
+    return sum;
+  }
+
+  @Override
+  public double dot(float[] x, int xOff, double[] y, int yOff, int n) {
+    DoubleVector acc = DoubleVector.zero(D);
+    int i = 0;
+    for (int upper = F.loopBound(n); i < upper; i += F.length())
+      acc = widen(FloatVector.fromArray(F, x, xOff + i)).fma(DoubleVector.fromArray(D, y, yOff + i), acc);
+    double sum = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < n; ++i)
+      sum += x[xOff + i] * y[yOff + i];
+    return sum;
+  }
+
+  @Override
+  public void add(double[] x, int xOff, double[] y, int yOff, int n) {
+    int i = 0;
+    for (int upper = D.loopBound(n); i < upper; i += D.length())
+      DoubleVector.fromArray(D, y, yOff + i).add(DoubleVector.fromArray(D, x, xOff + i)).intoArray(y, yOff + i);
+    for (; i < n; ++i)
+      y[yOff + i] += x[xOff + i];
+  }
+
+  @Override
+  public void add(float[] x, int xOff, double[] y, int yOff, int n) {
+    int i = 0;
+    for (int upper = F.loopBound(n); i < upper; i += F.length())
+      DoubleVector.fromArray(D, y, yOff + i).add(widen(FloatVector.fromArray(F, x, xOff + i))).intoArray(y, yOff + i);
+    for (; i < n; ++i)
+      y[yOff + i] += x[xOff + i];
+  }
+
+  @Override
+  public void axpy(double a, double[] x, int xOff, double[] y, int yOff, int n) {
+    DoubleVector av = DoubleVector.broadcast(D, a);
+    int i = 0;
+    for (int upper = D.loopBound(n); i < upper; i += D.length())
+      DoubleVector.fromArray(D, x, xOff + i).fma(av, DoubleVector.fromArray(D, y, yOff + i)).intoArray(y, yOff + i);
+    for (; i < n; ++i)
+      y[yOff + i] += a * x[xOff + i];
+  }
+
+  @Override
+  public void axpy(double a, float[] x, int xOff, double[] y, int yOff, int n) {
+    DoubleVector av = DoubleVector.broadcast(D, a);
+    int i = 0;
+    for (int upper = F.loopBound(n); i < upper; i += F.length())
+      widen(FloatVector.fromArray(F, x, xOff + i)).fma(av, DoubleVector.fromArray(D, y, yOff + i)).intoArray(y, yOff + i);
+    for (; i < n; ++i)
+      y[yOff + i] += a * x[xOff + i];
+  }
+
+  @Override
+  public void biasCube(double[] h, double[] b, int n) {
+    int i = 0;
+    for (int upper = D.loopBound(n); i < upper; i += D.length()) {
+      DoubleVector v = DoubleVector.fromArray(D, h, i).add(DoubleVector.fromArray(D, b, i));
+      v.mul(v).mul(v).intoArray(h, i);
+    }
+    for (; i < n; ++i) {
+      double v = h[i] + b[i];
+      h[i] = v * v * v;
+    }
+  }
+
+}
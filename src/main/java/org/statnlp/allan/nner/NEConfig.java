@@ -186,6 +186,12 @@ public class NEConfig {
 	 */
 	public boolean doWordEmbeddingGradUpdate = true;
 
+	/**
+	 * Run the classifier's dense inner loops on SIMD kernels built on the
+	 * Vector API (see {@link org.statnlp.allan.depner.Kernels}).
+	 */
+	public boolean simd = false;
+
 	/**
 	 * Describes language-specific properties necessary for training and
 	 * testing. By default,
@@ -243,6 +249,7 @@ public class NEConfig {
 		noPunc = PropertiesUtils.getBool(props, "noPunc", noPunc);
 		doWordEmbeddingGradUpdate = PropertiesUtils.getBool(props, "doWordEmbeddingGradUpdate",
 				doWordEmbeddingGradUpdate);
+		simd = PropertiesUtils.getBool(props, "simd", simd);
 
 		// Runtime parsing options
 		sentenceDelimiter = PropertiesUtils.getString(props, "sentenceDelimiter", sentenceDelimiter);
@@ -291,6 +298,7 @@ public class NEConfig {
 		System.err.printf("cPOS = %b%n", cPOS);
 		System.err.printf("noPunc = %b%n", noPunc);
 		System.err.printf("doWordEmbeddingGradUpdate = %b%n", doWordEmbeddingGradUpdate);
+		System.err.printf("simd = %b%n", simd);
 	}
 
 }
@@ -1,21 +1,20 @@
 package org.statnlp.allan.nner;
 import edu.stanford.nlp.util.logging.Redwood;
-import edu.stanford.nlp.util.CollectionUtils;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.concurrent.MulticoreWrapper;
 import edu.stanford.nlp.util.concurrent.ThreadsafeProcessor;
 
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.IntStream;
 
 import org.statnlp.allan.depner.Dataset;
-import org.statnlp.allan.depner.Example;
+import org.statnlp.allan.depner.Kernels;
 
 /**
  * Neural network classifier which powers a transition-based dependency
@@ -84,6 +83,14 @@ public class NNERClassifier  {
    */
   private final Dataset dataset;
 
+  /**
+   * Indices into {@link #dataset}, whose first entries are the
+   * examples of the current mini-batch. Mini-batches are sampled by
+   * shuffling indices, so the packed examples are never moved.
+   * Created on the first mini-batch.
+   */
+  private int[] exampleOrder;
+
   /**
    * We use MulticoreWrapper to parallelize mini-batch training.
    * <p>
@@ -92,10 +99,16 @@ public class NNERClassifier  {
    * Threaded job output: cost value, weight gradients for partition of
    * minibatch
    */
-  private final MulticoreWrapper<Pair<Collection<Example>, FeedforwardParams>, Cost> jobHandler;
+  private final MulticoreWrapper<Pair<Dataset.Cursor, FeedforwardParams>, Cost> jobHandler;
 
   private final NEConfig config;
 
+  /**
+   * Dense vector primitives used by the feedforward and
+   * backpropagation loops.
+   */
+  private final Kernels kernels;
+
   /**
    * Number of possible dependency relation labels among which this
    * classifier will choose.
@@ -142,6 +155,7 @@ public class NNERClassifier  {
     initGradientHistories();
 
     numLabels = W2.length;
+    kernels = Kernels.create(config.simd);
 
     preMap = new HashMap<>();
     for (int i = 0; i < preComputed.size() && i < config.numPreComputed; ++i)
@@ -168,7 +182,7 @@ public class NNERClassifier  {
    *
    * @see #computeCostFunction(int, double, double)
    */
-  private class CostFunction implements ThreadsafeProcessor<Pair<Collection<Example>, FeedforwardParams>, Cost> {
+  private class CostFunction implements ThreadsafeProcessor<Pair<Dataset.Cursor, FeedforwardParams>, Cost> {
 
     private double[][] gradW1;
     private double[] gradb1;
@@ -176,8 +190,8 @@ public class NNERClassifier  {
     private double[][] gradE;
 
     @Override
-    public Cost process(Pair<Collection<Example>, FeedforwardParams> input) {
-      Collection<Example> examples = input.first();
+    public Cost process(Pair<Dataset.Cursor, FeedforwardParams> input) {
+      Dataset.Cursor examples = input.first();
       FeedforwardParams params = input.second();
 
       // We can't fix the seed used with ThreadLocalRandom
@@ -192,10 +206,7 @@ public class NNERClassifier  {
       double cost = 0.0;
       double correct = 0.0;
 
-      for (Example ex : examples) {
-        List<Integer> feature = ex.getFeature();
-        List<Integer> label = ex.getLabel();
-
+      while (examples.next()) {
         double[] scores = new double[numLabels];
         double[] hidden = new double[config.hiddenSize];
         double[] hidden3 = new double[config.hiddenSize];
@@ -208,7 +219,7 @@ public class NNERClassifier  {
 
         int offset = 0;
         for (int j = 0; j < NEConfig.numTokens; ++j) {
-          int tok = feature.get(j);
+          int tok = examples.feature(j);
           int index = tok * NEConfig.numTokens + j;
 
           if (preMap.containsKey(index)) {
@@ -216,15 +227,12 @@ public class NNERClassifier  {
             // precomputed
             int id = preMap.get(index);
 
-            // Only extract activations for those nodes which are still
-            // activated (`ls`)
-            for (int nodeIndex : ls)
-              hidden[nodeIndex] += saved[id][nodeIndex];
+            // Whole rows are added, as this vectorizes; values of
+            // dropped units are never read
+            kernels.add(saved[id], 0, hidden, 0, config.hiddenSize);
           } else {
-            for (int nodeIndex : ls) {
-              for (int k = 0; k < config.embeddingSize; ++k)
-                hidden[nodeIndex] += W1[nodeIndex][offset + k] * E[tok][k];
-            }
+            for (int nodeIndex : ls)
+              hidden[nodeIndex] += kernels.dot(W1[nodeIndex], offset, E[tok], 0, config.embeddingSize);
           }
           offset += config.embeddingSize;
         }
@@ -235,12 +243,12 @@ public class NNERClassifier  {
           hidden3[nodeIndex] = Math.pow(hidden[nodeIndex], 3);
         }
 
-        // Feed forward to softmax layer (no activation yet)
+        // Feed forward to softmax layer (no activation yet). Dropped
+        // units are zero in `hidden3`, so full rows can be used.
         int optLabel = -1;
         for (int i = 0; i < numLabels; ++i) {
-          if (label.get(i) >= 0) {
-            for (int nodeIndex : ls)
-              scores[i] += W2[i][nodeIndex] * hidden3[nodeIndex];
+          if (examples.label(i) >= 0) {
+            scores[i] = kernels.dot(W2[i], 0, hidden3, 0, config.hiddenSize);
 
             if (optLabel < 0 || scores[i] > scores[optLabel])
               optLabel = i;
@@ -251,25 +259,23 @@ public class NNERClassifier  {
         double sum2 = 0.0;
         double maxScore = scores[optLabel];
         for (int i = 0; i < numLabels; ++i) {
-          if (label.get(i) >= 0) {
+          if (examples.label(i) >= 0) {
             scores[i] = Math.exp(scores[i] - maxScore);
-            if (label.get(i) == 1) sum1 += scores[i];
+            if (examples.label(i) == 1) sum1 += scores[i];
             sum2 += scores[i];
           }
         }
 
         cost += (Math.log(sum2) - Math.log(sum1)) / params.getBatchSize();
-        if (label.get(optLabel) == 1)
+        if (examples.label(optLabel) == 1)
           correct += +1.0 / params.getBatchSize();
 
         double[] gradHidden3 = new double[config.hiddenSize];
         for (int i = 0; i < numLabels; ++i)
-          if (label.get(i) >= 0) {
-            double delta = -(label.get(i) - scores[i] / sum2) / params.getBatchSize();
-            for (int nodeIndex : ls) {
-              gradW2[i][nodeIndex] += delta * hidden3[nodeIndex];
-              gradHidden3[nodeIndex] += delta * W2[i][nodeIndex];
-            }
+          if (examples.label(i) >= 0) {
+            double delta = -(examples.label(i) - scores[i] / sum2) / params.getBatchSize();
+            kernels.axpy(delta, hidden3, 0, gradW2[i], 0, config.hiddenSize);
+            kernels.axpy(delta, W2[i], 0, gradHidden3, 0, config.hiddenSize);
           }
 
         double[] gradHidden = new double[config.hiddenSize];
@@ -280,7 +286,7 @@ public class NNERClassifier  {
 
         offset = 0;
         for (int j = 0; j < NEConfig.numTokens; ++j) {
-          int tok = feature.get(j);
+          int tok = examples.feature(j);
           int index = tok * NEConfig.numTokens + j;
           if (preMap.containsKey(index)) {
             int id = preMap.get(index);
@@ -288,10 +294,8 @@ public class NNERClassifier  {
               gradSaved[id][nodeIndex] += gradHidden[nodeIndex];
           } else {
             for (int nodeIndex : ls) {
-              for (int k = 0; k < config.embeddingSize; ++k) {
-                gradW1[nodeIndex][offset + k] += gradHidden[nodeIndex] * E[tok][k];
-                gradE[tok][k] += gradHidden[nodeIndex] * W1[nodeIndex][offset + k];
-              }
+              kernels.axpy(gradHidden[nodeIndex], E[tok], 0, gradW1[nodeIndex], offset, config.embeddingSize);
+              kernels.axpy(gradHidden[nodeIndex], W1[nodeIndex], offset, gradE[tok], 0, config.embeddingSize);
             }
           }
           offset += config.embeddingSize;
@@ -305,7 +309,7 @@ public class NNERClassifier  {
      * Return a new threadsafe instance.
      */
     @Override
-    public ThreadsafeProcessor<Pair<Collection<Example>, FeedforwardParams>, Cost> newInstance() {
+    public ThreadsafeProcessor<Pair<Dataset.Cursor, FeedforwardParams>, Cost> newInstance() {
       return new CostFunction();
     }
   }
@@ -403,10 +407,8 @@ public class NNERClassifier  {
         int offset = (x % NEConfig.numTokens) * config.embeddingSize;
         for (int j = 0; j < config.hiddenSize; ++j) {
           double delta = gradSaved[mapX][j];
-          for (int k = 0; k < config.embeddingSize; ++k) {
-            gradW1[j][offset + k] += delta * E[tok][k];
-            gradE[tok][k] += delta * W1[j][offset + k];
-          }
+          kernels.axpy(delta, E[tok], 0, gradW1[j], offset, config.embeddingSize);
+          kernels.axpy(delta, W1[j], offset, gradE[tok], 0, config.embeddingSize);
         }
       }
     }
@@ -473,13 +475,12 @@ public class NNERClassifier  {
    * Determine the feature IDs which need to be pre-computed for
    * training with these examples.
    */
-  private Set<Integer> getToPreCompute(List<Example> examples) {
+  private Set<Integer> getToPreCompute(int numExamples) {
     Set<Integer> featureIDs = new HashSet<>();
-    for (Example ex : examples) {
-      List<Integer> feature = ex.getFeature();
-
+    Dataset.Cursor examples = dataset.cursor(exampleOrder, 0, numExamples);
+    while (examples.next()) {
       for (int j = 0; j < NEConfig.numTokens; j++) {
-        int tok = feature.get(j);
+        int tok = examples.feature(j);
         int index = tok * NEConfig.numTokens + j;
         if (preMap.containsKey(index))
           featureIDs.add(index);
@@ -492,6 +493,29 @@ public class NNERClassifier  {
     return featureIDs;
   }
 
+  /**
+   * Shuffle a random sample of {@code batchSize} examples (all of them,
+   * if there are fewer) to the front of {@link #exampleOrder}. Draws
+   * the same random numbers as {@link NEUtil#getRandomSubList}.
+   *
+   * @return Number of examples sampled
+   */
+  private int sampleExamples(int batchSize) {
+    if (exampleOrder == null)
+      exampleOrder = IntStream.range(0, dataset.n).toArray();
+
+    int n = exampleOrder.length;
+    int size = Math.min(batchSize, n);
+    Random random = NEUtil.getRandom();
+    for (int i = 0; i < size; ++i) {
+      int j = i + random.nextInt(n - i);
+      int tmp = exampleOrder[i];
+      exampleOrder[i] = exampleOrder[j];
+      exampleOrder[j] = tmp;
+    }
+    return size;
+  }
+
   /**
    * Determine the total cost on the dataset associated with this
    * classifier using the current learned parameters. This cost is
@@ -514,11 +538,11 @@ public class NNERClassifier  {
   public Cost computeCostFunction(int batchSize, double regParameter, double dropOutProb) {
     validateTraining();
 
-    List<Example> examples = NEUtil.getRandomSubList(dataset.examples, batchSize);
+    int numExamples = sampleExamples(batchSize);
 
     // Redo precomputations for only those features which are triggered
     // by examples in this mini-batch.
-    Set<Integer> toPreCompute = getToPreCompute(examples);
+    Set<Integer> toPreCompute = getToPreCompute(numExamples);
     preCompute(toPreCompute);
 
     // Set up parameters for feedforward
@@ -527,12 +551,14 @@ public class NNERClassifier  {
     // Zero out saved-embedding gradients
     gradSaved = new double[preMap.size()][config.hiddenSize];
 
+    // Submit chunks for processing on separate threads. Chunk sizes
+    // differ by at most one example.
     int numChunks = config.trainingThreads;
-    List<List<Example>> chunks = CollectionUtils.partitionIntoFolds(examples, numChunks);
-
-    // Submit chunks for processing on separate threads
-    for (Collection<Example> chunk : chunks)
-      jobHandler.put(new Pair<>(chunk, params));
+    for (int i = 0, from = 0; i < numChunks; ++i) {
+      int to = from + numExamples / numChunks + (i < numExamples % numChunks ? 1 : 0);
+      jobHandler.put(new Pair<>(dataset.cursor(exampleOrder, from, to), params));
+      from = to;
+    }
     jobHandler.join(false);
 
     // Join costs from each chunk
@@ -667,8 +693,7 @@ public class NNERClassifier  {
       int tok = x / NEConfig.numTokens;
       int pos = x % NEConfig.numTokens;
       for (int j = 0; j < config.hiddenSize; ++j)
-        for (int k = 0; k < config.embeddingSize; ++k)
-          saved[mapX][j] += W1[j][pos * config.embeddingSize + k] * E[tok][k];
+        saved[mapX][j] = kernels.dot(W1[j], pos * config.embeddingSize, E[tok], 0, config.embeddingSize);
     }
     log.info("PreComputed " + toPreCompute.size() + ", Elapsed Time: " + (System
         .currentTimeMillis() - startTime) / 1000.0 + " (s)");
@@ -691,12 +716,10 @@ public class NNERClassifier  {
 
       if (preMap.containsKey(index)) {
         int id = preMap.get(index);
-        for (int i = 0; i < config.hiddenSize; ++i)
-          hidden[i] += saved[id][i];
+        kernels.add(saved[id], 0, hidden, 0, config.hiddenSize);
       } else {
         for (int i = 0; i < config.hiddenSize; ++i)
-          for (int k = 0; k < config.embeddingSize; ++k)
-            hidden[i] += W1[i][offset + k] * E[tok][k];
+          hidden[i] += kernels.dot(W1[i], offset, E[tok], 0, config.embeddingSize);
       }
       offset += config.embeddingSize;
     }
@@ -709,8 +732,7 @@ public class NNERClassifier  {
 
     double[] scores = new double[numLabels];
     for (int i = 0; i < numLabels; ++i)
-      for (int j = 0; j < config.hiddenSize; ++j)
-        scores[i] += W2[i][j] * hidden[j];
+      scores[i] = kernels.dot(W2[i], 0, hidden, 0, config.hiddenSize);
     return scores;
   }
 
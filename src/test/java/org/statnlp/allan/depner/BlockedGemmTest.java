@@ -0,0 +1,149 @@
+package org.statnlp.allan.depner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the blocked matrix products against naive loops, and that
+ * training with {@code gemmBackprop = true} computes the same costs and
+ * gradients as the per-example loop.
+ */
+public class BlockedGemmTest extends TestCase {
+
+  private static final double TOLERANCE = 1e-9;
+
+  private final Random random = new Random(1);
+
+  private final Kernels kernels = Kernels.create(false);
+
+  private double[] randomDoubles(int n) {
+    double[] a = new double[n];
+    for (int i = 0; i < n; i++)
+      a[i] = random.nextDouble() * 2 - 1;
+    return a;
+  }
+
+  public void testProductsMatchNaiveLoops() {
+    // Sizes on both sides of the block size, and a column panel of a
+    // wider right operand
+    for (int m : new int[] { 1, 31, 70 }) {
+      int n = 13, k = 37, bOff = 5, ldb = 60;
+
+      double[] a = randomDoubles(m * k);
+      double[] b = randomDoubles(Math.max(n, k) * ldb);
+      double[] c = randomDoubles(m * n);
+      double[] expected = c.clone();
+      for (int i = 0; i < m; i++)
+        for (int j = 0; j < n; j++)
+          for (int p = 0; p < k; p++)
+            expected[i * n + j] += a[i * k + p] * b[bOff + j * ldb + p];
+      BlockedGemm.multiplyTransposed(kernels, m, n, k, a, b, bOff, ldb, c);
+      assertArrayEquals(expected, c);
+
+      c = randomDoubles(m * n);
+      expected = c.clone();
+      for (int i = 0; i < m; i++)
+        for (int j = 0; j < n; j++)
+          for (int p = 0; p < k; p++)
+            expected[i * n + j] += a[i * k + p] * b[bOff + p * ldb + j];
+      BlockedGemm.multiply(kernels, m, n, k, a, b, bOff, ldb, c);
+      assertArrayEquals(expected, c);
+
+      // a is k x m here, b is k x n
+      double[][] wide = new double[m][];
+      for (int i = 0; i < m; i++)
+        wide[i] = randomDoubles(n + bOff);
+      double[][] expectedWide = new double[m][];
+      for (int i = 0; i < m; i++) {
+        expectedWide[i] = wide[i].clone();
+        for (int j = 0; j < n; j++)
+          for (int p = 0; p < k; p++)
+            expectedWide[i][bOff + j] += a[p * m + i] * b[p * n + j];
+      }
+      BlockedGemm.multiplyTransposedLeft(kernels, m, n, k, a, b, wide, bOff);
+      for (int i = 0; i < m; i++)
+        assertArrayEquals(expectedWide[i], wide[i]);
+    }
+  }
+
+  public void testBackpropMatchesPerExampleLoop() {
+    int numWords = 40, hiddenSize = 37, embeddingSize = 11, numLabels = 9, numExamples = 300;
+
+    double[][] E = new double[numWords][];
+    for (int i = 0; i < numWords; i++)
+      E[i] = randomDoubles(embeddingSize);
+    double[][] W1 = new double[hiddenSize][];
+    for (int i = 0; i < hiddenSize; i++)
+      W1[i] = randomDoubles(embeddingSize * Config.numTokens);
+    double[] b1 = randomDoubles(hiddenSize);
+    double[][] W2 = new double[numLabels][];
+    for (int i = 0; i < numLabels; i++)
+      W2[i] = randomDoubles(hiddenSize);
+
+    // Pre-compute roughly half of the (token, position) pairs
+    List<Integer> preComputed = new ArrayList<>();
+    for (int x = 0; x < numWords * Config.numTokens; x += 2)
+      preComputed.add(x);
+
+    // Some labels do not apply; one of the others is correct
+    Dataset batch = new Dataset(Config.numTokens, numLabels);
+    for (int n = 0; n < numExamples; n++) {
+      int[] feature = new int[Config.numTokens];
+      for (int j = 0; j < feature.length; j++)
+        feature[j] = random.nextInt(numWords);
+      int[] label = new int[numLabels];
+      for (int i = 0; i < numLabels; i++)
+        label[i] = random.nextInt(3) == 0 ? -1 : 0;
+      label[random.nextInt(numLabels)] = 1;
+      batch.addExample(feature, label);
+    }
+
+    Properties props = new Properties();
+    props.setProperty("hiddenSize", String.valueOf(hiddenSize));
+    props.setProperty("embeddingSize", String.valueOf(embeddingSize));
+    props.setProperty("trainingThreads", "2");
+
+    // In mixed precision, the per-example loop multiplies
+    // single-precision weights in single precision
+    for (boolean mixedPrecision : new boolean[] { false, true }) {
+      props.setProperty("mixedPrecision", String.valueOf(mixedPrecision));
+      double tolerance = mixedPrecision ? 1e-4 : TOLERANCE;
+      Classifier.Cost[] costs = new Classifier.Cost[2];
+      for (int gemm = 0; gemm < 2; gemm++) {
+        props.setProperty("gemmBackprop", String.valueOf(gemm == 1));
+        Classifier classifier = new Classifier(new Config(props), batch, E, W1, b1, W2, preComputed);
+        Util.getRandom(7);
+        costs[gemm] = classifier.computeCostFunction(batch, 1e-4, 0.5);
+        classifier.finalizeTraining();
+      }
+
+      Classifier.Cost expected = costs[0], actual = costs[1];
+      assertEquals(expected.getCost(), actual.getCost(), tolerance * expected.getCost());
+      assertEquals(expected.getPercentCorrect(), actual.getPercentCorrect(), TOLERANCE);
+      assertArrayEquals(expected.getGradb1(), actual.getGradb1(), tolerance);
+      for (int i = 0; i < hiddenSize; i++)
+        assertArrayEquals(expected.getGradW1()[i], actual.getGradW1()[i], tolerance);
+      for (int i = 0; i < numLabels; i++)
+        assertArrayEquals(expected.getGradW2()[i], actual.getGradW2()[i], tolerance);
+      double[][] expectedGradE = expected.getGradE(), actualGradE = actual.getGradE();
+      for (int i = 0; i < numWords; i++)
+        assertArrayEquals(expectedGradE[i], actualGradE[i], tolerance);
+    }
+  }
+
+  private static void assertArrayEquals(double[] expected, double[] actual) {
+    assertArrayEquals(expected, actual, TOLERANCE);
+  }
+
+  /** Compares to within {@code tolerance}, relative to values above 1 */
+  private static void assertArrayEquals(double[] expected, double[] actual, double tolerance) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++)
+      assertEquals(expected[i], actual[i], tolerance * Math.max(1, Math.abs(expected[i])));
+  }
+
+}
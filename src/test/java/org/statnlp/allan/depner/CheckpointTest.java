@@ -0,0 +1,98 @@
+package org.statnlp.allan.depner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a {@link Checkpoint} reads back exactly what was written,
+ * and that the shared random generator continues its sequence from a
+ * saved state.
+ */
+public class CheckpointTest extends TestCase {
+
+  private final Random random = new Random(1);
+
+  public void testRoundTrip() throws IOException {
+    Classifier.TrainingState state = new Classifier.TrainingState(randomMatrix(7, 3), randomMatrix(4, 6),
+        randomVector(4), randomMatrix(5, 4), randomMatrix(7, 3), randomMatrix(4, 6), randomVector(4),
+        randomMatrix(5, 4), new int[] { 2, 0, 1 }, 2, new int[] { 3, 3, 1, 0, 2, 3, 3 }, 3, 1e-8, 0.01, 1e-6,
+        random.nextDouble(), random.nextDouble());
+    Checkpoint expected = new Checkpoint(11, 87.5, new Util.RandomState(0x123456789ABCL, true, -0.75),
+        Arrays.asList("-UNKNOWN-", "-NULL-", "the"), Arrays.asList("-NULL-", "NN"),
+        Arrays.asList("-NULL-", "root", "nsubj"), Arrays.asList(5, 48, 97), state);
+
+    File file = File.createTempFile("checkpoint", ".ckpt");
+    file.deleteOnExit();
+    expected.write(file.getPath());
+    Checkpoint actual = Checkpoint.read(file.getPath());
+
+    assertEquals(expected.iteration, actual.iteration);
+    assertEquals(expected.bestUAS, actual.bestUAS);
+    assertEquals(expected.randomState.seed, actual.randomState.seed);
+    assertEquals(expected.randomState.haveNextNextGaussian, actual.randomState.haveNextNextGaussian);
+    assertEquals(expected.randomState.nextNextGaussian, actual.randomState.nextNextGaussian);
+    assertEquals(expected.knownWords, actual.knownWords);
+    assertEquals(expected.knownPos, actual.knownPos);
+    assertEquals(expected.knownLabels, actual.knownLabels);
+    assertEquals(expected.preComputed, actual.preComputed);
+
+    Classifier.TrainingState c = actual.classifier;
+    assertTrue(Arrays.deepEquals(state.E, c.E));
+    assertTrue(Arrays.deepEquals(state.W1, c.W1));
+    assertTrue(Arrays.equals(state.b1, c.b1));
+    assertTrue(Arrays.deepEquals(state.W2, c.W2));
+    assertTrue(Arrays.deepEquals(state.eg2E, c.eg2E));
+    assertTrue(Arrays.deepEquals(state.eg2W1, c.eg2W1));
+    assertTrue(Arrays.equals(state.eg2b1, c.eg2b1));
+    assertTrue(Arrays.deepEquals(state.eg2W2, c.eg2W2));
+    assertTrue(Arrays.equals(state.exampleOrder, c.exampleOrder));
+    assertEquals(state.epochPosition, c.epochPosition);
+    assertTrue(Arrays.equals(state.regularizedUpTo, c.regularizedUpTo));
+    assertEquals(state.numSteps, c.numSteps);
+    assertEquals(state.lastRegParameter, c.lastRegParameter);
+    assertEquals(state.lastAdaAlpha, c.lastAdaAlpha);
+    assertEquals(state.lastAdaEps, c.lastAdaEps);
+    assertEquals(state.squaresW, c.squaresW);
+    assertEquals(state.squaresE, c.squaresE);
+  }
+
+  public void testRandomStateContinuesSequence() {
+    Random expected = new Random(42);
+    Util.getRandom(42);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(expected.nextLong(), Util.getRandom().nextLong());
+      assertEquals(expected.nextGaussian(), Util.getRandom().nextGaussian());
+    }
+
+    // Save in the middle of a Gaussian pair, so that the cached second
+    // value is part of the state
+    Util.getRandom().nextGaussian();
+    Util.RandomState state = Util.getRandomState();
+    List<Double> draws = Arrays.asList(Util.getRandom().nextGaussian(), Util.getRandom().nextDouble(),
+        (double) Util.getRandom().nextInt(1000), Util.getRandom().nextGaussian());
+    Util.getRandom(7).nextGaussian();
+    Util.setRandomState(state);
+    assertEquals(draws, Arrays.asList(Util.getRandom().nextGaussian(), Util.getRandom().nextDouble(),
+        (double) Util.getRandom().nextInt(1000), Util.getRandom().nextGaussian()));
+  }
+
+  private double[][] randomMatrix(int rows, int cols) {
+    double[][] m = new double[rows][];
+    for (int i = 0; i < rows; i++)
+      m[i] = randomVector(cols);
+    return m;
+  }
+
+  private double[] randomVector(int n) {
+    double[] v = new double[n];
+    for (int i = 0; i < n; i++)
+      v[i] = random.nextDouble() - 0.5;
+    return v;
+  }
+
+}
@@ -0,0 +1,49 @@
+package org.statnlp.allan.depner;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that examples read back from the packed {@link Dataset}
+ * storage match what was added, across block and label-word
+ * boundaries.
+ */
+public class DatasetTest extends TestCase {
+
+  public void testExamplesRoundTrip() {
+    int numFeatures = 48, numLabels = 79, numExamples = 20000;
+
+    for (boolean offHeap : new boolean[] { false, true }) {
+      Dataset dataset = new Dataset(numFeatures, numLabels, offHeap);
+      int[][] features = new int[numExamples][numFeatures];
+      int[][] labels = new int[numExamples][numLabels];
+
+      Random random = new Random(1);
+      for (int k = 0; k < numExamples; ++k) {
+        for (int j = 0; j < numFeatures; ++j)
+          features[k][j] = random.nextInt(100000);
+        for (int i = 0; i < numLabels; ++i)
+          labels[k][i] = random.nextInt(3) - 1;
+        dataset.addExample(features[k], labels[k]);
+      }
+      assertEquals(numExamples, dataset.n);
+
+      int[] indices = { 19999, 0, 16383, 16384, 7 };
+      Dataset.Cursor cursor = dataset.cursor(indices, 1, indices.length);
+      for (int p = 1; p < indices.length; ++p) {
+        assertTrue(cursor.next());
+        for (int j = 0; j < numFeatures; ++j)
+          assertEquals(features[indices[p]][j], cursor.feature(j));
+        for (int i = 0; i < numLabels; ++i)
+          assertEquals(labels[indices[p]][i], cursor.label(i));
+      }
+      assertFalse(cursor.next());
+
+      Example example = dataset.examples.get(16384);
+      for (int i = 0; i < numLabels; ++i)
+        assertEquals(labels[16384][i], (int) example.getLabel().get(i));
+    }
+  }
+
+}
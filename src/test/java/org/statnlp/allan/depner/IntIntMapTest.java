@@ -0,0 +1,44 @@
+package org.statnlp.allan.depner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the counter operations of {@link IntIntMap} against a plain
+ * sort.
+ */
+public class IntIntMapTest extends TestCase {
+
+  public void testTopKeysMatchesSort() {
+    Random random = new Random(1);
+    IntIntMap counts = new IntIntMap(16), other = new IntIntMap(16);
+    int[] expectedCounts = new int[5000];
+    for (int i = 0; i < 100000; ++i) {
+      // Few distinct counts, so that many keys tie
+      int key = (int) Math.abs(random.nextGaussian() * 800) % expectedCounts.length;
+      (i % 2 == 0 ? counts : other).add(key, 1);
+      expectedCounts[key]++;
+    }
+    counts.addAll(other);
+
+    List<Integer> expected = new ArrayList<>();
+    for (int key = 0; key < expectedCounts.length; ++key)
+      if (expectedCounts[key] > 0)
+        expected.add(key);
+    expected.sort((x, y) -> expectedCounts[x] != expectedCounts[y]
+        ? Integer.compare(expectedCounts[y], expectedCounts[x])
+        : Integer.compare(x, y));
+    assertEquals(expected.size(), counts.size());
+
+    for (int k : new int[] { 1, 10, 777, expected.size(), expected.size() + 5 }) {
+      int[] top = counts.topKeys(k);
+      assertEquals(Math.min(k, expected.size()), top.length);
+      for (int i = 0; i < top.length; ++i)
+        assertEquals((int) expected.get(i), top[i]);
+    }
+  }
+
+}
@@ -0,0 +1,126 @@
+package org.statnlp.allan.depner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the kernels selected with {@code simd = true} (the Vector
+ * API backend when it is available) agree with the scalar kernels.
+ */
+public class KernelsTest extends TestCase {
+
+  private static final double TOLERANCE = 1e-9;
+
+  private final Random random = new Random(1);
+
+  private final Kernels scalar = Kernels.create(false);
+  private final Kernels simd = Kernels.create(true);
+
+  private double[] randomDoubles(int n) {
+    double[] a = new double[n];
+    for (int i = 0; i < n; i++)
+      a[i] = random.nextDouble() * 2 - 1;
+    return a;
+  }
+
+  private float[] randomFloats(int n) {
+    float[] a = new float[n];
+    for (int i = 0; i < n; i++)
+      a[i] = (float) (random.nextDouble() * 2 - 1);
+    return a;
+  }
+
+  public void testKernelsMatchScalar() {
+    // Odd lengths and offsets exercise the scalar loop tails
+    for (int n : new int[] { 1, 7, 50, 200, 203 }) {
+      double[] xd = randomDoubles(n + 3), yd = randomDoubles(n + 5);
+      float[] xf = randomFloats(n + 3), yf = randomFloats(n + 5);
+
+      assertEquals(scalar.dot(xd, 3, yd, 5, n), simd.dot(xd, 3, yd, 5, n), TOLERANCE);
+      assertEquals(scalar.dot(xf, 3, yf, 5, n), simd.dot(xf, 3, yf, 5, n), TOLERANCE);
+      assertEquals(scalar.dot(xf, 3, yd, 5, n), simd.dot(xf, 3, yd, 5, n), TOLERANCE);
+
+      double[] expected = yd.clone(), actual = yd.clone();
+      scalar.add(xd, 3, expected, 5, n);
+      simd.add(xd, 3, actual, 5, n);
+      assertArrayEquals(expected, actual);
+
+      scalar.add(xf, 3, expected, 5, n);
+      simd.add(xf, 3, actual, 5, n);
+      assertArrayEquals(expected, actual);
+
+      scalar.axpy(-0.25, xd, 3, expected, 5, n);
+      simd.axpy(-0.25, xd, 3, actual, 5, n);
+      assertArrayEquals(expected, actual);
+
+      scalar.axpy(-0.25, xf, 3, expected, 5, n);
+      simd.axpy(-0.25, xf, 3, actual, 5, n);
+      assertArrayEquals(expected, actual);
+
+      double[] b = randomDoubles(n);
+      expected = randomDoubles(n);
+      actual = expected.clone();
+      scalar.biasCube(expected, b, n);
+      simd.biasCube(actual, b, n);
+      assertArrayEquals(expected, actual);
+    }
+  }
+
+  public void testClassifierScoresMatchScalar() {
+    int numWords = 40, hiddenSize = 37, embeddingSize = 11, numLabels = 9;
+
+    Properties props = new Properties();
+    props.setProperty("hiddenSize", String.valueOf(hiddenSize));
+    props.setProperty("embeddingSize", String.valueOf(embeddingSize));
+
+    double[][] E = new double[numWords][];
+    for (int i = 0; i < numWords; i++)
+      E[i] = randomDoubles(embeddingSize);
+    double[][] W1 = new double[hiddenSize][];
+    for (int i = 0; i < hiddenSize; i++)
+      W1[i] = randomDoubles(embeddingSize * Config.numTokens);
+    double[] b1 = randomDoubles(hiddenSize);
+    double[][] W2 = new double[numLabels][];
+    for (int i = 0; i < numLabels; i++)
+      W2[i] = randomDoubles(hiddenSize);
+
+    // Pre-compute roughly half of the (token, position) pairs
+    List<Integer> preComputed = new ArrayList<>();
+    for (int x = 0; x < numWords * Config.numTokens; x += 2)
+      preComputed.add(x);
+
+    for (String floatWeights : new String[] { "false", "true" }) {
+      props.setProperty("floatWeights", floatWeights);
+
+      props.setProperty("simd", "false");
+      Classifier expected = new Classifier(new Config(props), E, W1, b1, W2, preComputed);
+      expected.preCompute();
+
+      props.setProperty("simd", "true");
+      Classifier actual = new Classifier(new Config(props), E, W1, b1, W2, preComputed);
+      actual.preCompute();
+
+      for (int trial = 0; trial < 20; trial++) {
+        int[] feature = new int[Config.numTokens];
+        for (int j = 0; j < feature.length; j++)
+          feature[j] = random.nextInt(numWords);
+
+        double[] expectedScores = expected.computeScores(feature);
+        double[] actualScores = actual.computeScores(feature);
+        for (int i = 0; i < numLabels; i++)
+          assertEquals(expectedScores[i], actualScores[i], 1e-6 * Math.max(1, Math.abs(expectedScores[i])));
+      }
+    }
+  }
+
+  private static void assertArrayEquals(double[] expected, double[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++)
+      assertEquals(expected[i], actual[i], TOLERANCE);
+  }
+
+}
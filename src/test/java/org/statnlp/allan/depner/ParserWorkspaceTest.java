@@ -0,0 +1,163 @@
+package org.statnlp.allan.depner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.util.CoreMap;
+import junit.framework.TestCase;
+
+/**
+ * Checks that advancing parses through a {@link ParserWorkspace} does
+ * not allocate, by reading the thread's allocation counter around
+ * {@link DependencyParser#predictLockstep}.
+ */
+public class ParserWorkspaceTest extends TestCase {
+
+  private static final String TEST_FILE = "data/voa/test.conllx";
+
+  private final Random random = new Random(1);
+
+  public void testLockstepParsingDoesNotAllocate() throws IOException {
+    List<CoreMap> sents = new ArrayList<>();
+    List<DependencyTree> trees = new ArrayList<>();
+    Util.loadConllFile(TEST_FILE, sents, trees);
+    sents = sents.subList(0, 40);
+
+    File modelFile = File.createTempFile("parser-workspace", ".txt");
+    modelFile.deleteOnExit();
+    writeRandomModel(modelFile, sents, trees);
+
+    for (boolean quantize : new boolean[] { false, true }) {
+      Properties props = new Properties();
+      props.setProperty("parseBatchSize", "16");
+      props.setProperty("quantize", String.valueOf(quantize));
+      props.setProperty("calibrationFile", TEST_FILE);
+      DependencyParser parser = DependencyParser.loadFromModelFile(modelFile.getPath(), props);
+      ParserWorkspace workspace = parser.newWorkspace();
+
+      // Warm up, so that class loading and the like is out of the way
+      parser.predictInner(sents, workspace);
+
+      ArcStandard system = new ArcStandard(new Config(props).tlp, new ArrayList<>(labels(trees)), false);
+      // The JIT may allocate once while it swaps in compiled code, so
+      // look at the best of a few rounds. Allocation per transition
+      // would show up in every round.
+      long allocated = Long.MAX_VALUE;
+      for (int round = 0; round < 5; ++round)
+        allocated = Math.min(allocated, measureLockstep(parser, system, workspace, sents));
+      assertEquals(0, allocated);
+
+      for (int i = 0; i < workspace.capacity(); ++i) {
+        DependencyTree tree = workspace.configurations[i].tree;
+        for (int k = 1; k <= tree.n; ++k)
+          assertTrue(tree.getHead(k) != Config.NONEXIST);
+      }
+    }
+  }
+
+  /**
+   * Fill the workspace with fresh configurations and return the number
+   * of bytes allocated by this thread while parsing them.
+   */
+  private static long measureLockstep(DependencyParser parser, ParsingSystem system,
+                                      ParserWorkspace workspace, List<CoreMap> sents) {
+    int n = workspace.capacity();
+    for (int i = 0; i < n; ++i)
+      workspace.configurations[i] = system.initialConfiguration(sents.get(i));
+
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+
+    long overhead = bean.getThreadAllocatedBytes(thread);
+    overhead = bean.getThreadAllocatedBytes(thread) - overhead;
+
+    long before = bean.getThreadAllocatedBytes(thread);
+    parser.predictLockstep(workspace, n);
+    return bean.getThreadAllocatedBytes(thread) - before - overhead;
+  }
+
+  private static Set<String> labels(List<DependencyTree> trees) {
+    Set<String> labels = new LinkedHashSet<>();
+    labels.add("root");
+    for (DependencyTree tree : trees)
+      for (int k = 1; k <= tree.n; ++k)
+        labels.add(tree.getLabel(k));
+    return labels;
+  }
+
+  /**
+   * Write a model file whose vocabulary covers the given sentences and
+   * whose weights are random.
+   */
+  private void writeRandomModel(File file, List<CoreMap> sents, List<DependencyTree> trees) throws IOException {
+    int embeddingSize = 10, hiddenSize = 20;
+
+    Set<String> words = new LinkedHashSet<>(), pos = new LinkedHashSet<>();
+    for (Set<String> known : new Set[] { words, pos }) {
+      known.add(Config.UNKNOWN);
+      known.add(Config.NULL);
+      known.add(Config.ROOT);
+    }
+    for (CoreMap sent : sents) {
+      for (CoreLabel token : sent.get(CoreAnnotations.TokensAnnotation.class)) {
+        words.add(token.word());
+        pos.add(token.tag());
+      }
+    }
+    List<String> labels = new ArrayList<>();
+    labels.add(Config.NULL);
+    labels.addAll(labels(trees));
+
+    int numTransitions = labels.size() * 2 - 1;
+    int numEmbeddings = words.size() + pos.size() + labels.size();
+
+    try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+      out.println("dict=" + words.size());
+      out.println("pos=" + pos.size());
+      out.println("label=" + labels.size());
+      out.println("embeddingSize=" + embeddingSize);
+      out.println("hiddenSize=" + hiddenSize);
+      out.println("numTokens=" + Config.numTokens);
+      out.println("preComputed=" + numEmbeddings);
+
+      for (Set<String> known : new Set[] { words, pos })
+        for (Object s : known)
+          out.println(s + " " + randomRow(embeddingSize));
+      for (String label : labels)
+        out.println(label + " " + randomRow(embeddingSize));
+
+      for (int j = 0; j < embeddingSize * Config.numTokens; ++j)
+        out.println(randomRow(hiddenSize));
+      out.println(randomRow(hiddenSize));
+      for (int j = 0; j < hiddenSize; ++j)
+        out.println(randomRow(numTransitions));
+
+      // Pre-compute the first word positions of every token
+      StringBuilder preComputed = new StringBuilder();
+      for (int tok = 0; tok < numEmbeddings; ++tok)
+        preComputed.append(tok * Config.numTokens + tok % 6).append(' ');
+      out.println(preComputed.toString().trim());
+    }
+  }
+
+  private String randomRow(int n) {
+    StringBuilder row = new StringBuilder();
+    for (int i = 0; i < n; ++i) {
+      if (i > 0)
+        row.append(' ');
+      row.append(random.nextDouble() - 0.5);
+    }
+    return row.toString();
+  }
+
+}